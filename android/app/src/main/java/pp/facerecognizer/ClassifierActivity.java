@@ -24,7 +24,12 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.media.ImageReader.OnImageAvailableListener;
@@ -35,6 +40,7 @@ import android.os.Looper;
 import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
+import android.util.Log;
 import android.util.Size;
 import android.util.TypedValue;
 import android.view.Display;
@@ -44,25 +50,36 @@ import android.widget.ImageButton;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import pp.facerecognizer.connection.CustomVisionService;
+import pp.facerecognizer.connection.ServiceResult;
+import pp.facerecognizer.connection.UploadReport;
 import pp.facerecognizer.connection.VstsService;
 import pp.facerecognizer.connection.model.Tag;
 import pp.facerecognizer.connection.model.VstsBuild;
+import pp.facerecognizer.env.BitmapDecoder;
 import pp.facerecognizer.env.BorderedText;
+import pp.facerecognizer.env.ImageUtils;
 import pp.facerecognizer.env.Logger;
 import pp.facerecognizer.listener.BuildStatusListener;
 import pp.facerecognizer.listener.ImageDeleteCallback;
-import pp.facerecognizer.listener.ImageUploadCallback;
+import pp.facerecognizer.listener.BatchUploadCallback;
+import pp.facerecognizer.listener.ServiceCallback;
 
-public class ClassifierActivity extends CameraActivity implements OnImageAvailableListener, ImageUploadCallback, ImageDeleteCallback, BuildStatusListener/*, CodePushSyncStatusListener*/ {
+public class ClassifierActivity extends CameraActivity implements OnImageAvailableListener, BatchUploadCallback, ImageDeleteCallback, BuildStatusListener/*, CodePushSyncStatusListener*/ {
 
     private static final Logger LOGGER = new Logger();
 
@@ -70,8 +87,51 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
 
     private static final float TEXT_SIZE_DIP = 10;
 
+    private static final int FACE_DETECTION_DOWNSAMPLE = 2;
+    private static final int MIN_FACE_SIZE = 48;
+    private static final int MAX_FACES = 8;
+    private static final int DETECTION_INTERVAL = 5;
+
+    private static final String LOCAL_TAG_PREFIX = "local:";
+    private static final int ENROLLMENT_IMAGE_SIZE = 1024;
+    private static final float EMBEDDING_MATCH_THRESHOLD = 0.7f;
+    private static final String GALLERY_DIR = "gallery";
+    private static final String HEAD_FILE = "head.bin";
+    private static final int SCAN_REQUEST = 124;
+    private static final float SCAN_MIN_CONFIDENCE = 0.7f;
+
     private Integer sensorOrientation;
     private MSCognitiveServicesClassifier classifier;
+    private ThreadingProfile threadingProfile;
+    private boolean benchmarkThreading;
+    private boolean benchmarkGalleryIndex;
+    private String benchmarkFaceDetector;
+    private FaceDetector faceDetector;
+    private final float[] faceBoxes = new float[MAX_FACES * 4];
+    private long lastDetectionTimeMs;
+    private FaceTracker faceTracker;
+    private int trackedFrames;
+    // Each frame fills the next of these and publishes it, the views keep drawing the earlier ones.
+    private final RecognitionBuffer[] resultBuffers = {
+            new RecognitionBuffer(MAX_FACES), new RecognitionBuffer(MAX_FACES), new RecognitionBuffer(MAX_FACES)};
+    private int nextResultBuffer;
+    private volatile RecognitionBuffer lastResults;
+    private final RecognitionBuffer recognized = new RecognitionBuffer(MAX_FACES);
+    private final RectF[] faceRects = new RectF[MAX_FACES];
+    private final List<RectF> frameFaces = new ArrayList<>(MAX_FACES);
+    private final List<FaceTracker.Track> dueTracks = new ArrayList<>(MAX_FACES);
+    private final float[] matchScore = new float[1];
+    private final BitmapDecoder enrollmentDecoder = new BitmapDecoder(1);
+    private final RectF renderBox = new RectF();
+    private Paint boxPaint;
+    private boolean onDeviceEnrollment;
+    private EmbeddingGallery gallery;
+    private EmbeddingStore embeddingStore;
+    private boolean onDeviceTraining;
+    private HeadTrainer headTrainer;
+    // Builds the gallery index and compacts the store, off the threads recognition runs on.
+    private final ExecutorService galleryExecutor = Executors.newSingleThreadExecutor();
+    private LinearHead head;
     private CustomVisionService customVisionService;
     private VstsService vstsService;
     private BorderedText borderedText;
@@ -87,7 +147,7 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
 
     private Timer timer;
 
-    private Tag[] mTags;
+    private volatile Tag[] mTags;
     private String mLabelId;
     private String mLabel;
 
@@ -132,6 +192,13 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
             }
         });
 
+        addButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override public boolean onLongClick(View view) {
+                onScan();
+                return true;
+            }
+        });
+
         deleteButton.setOnClickListener(new View.OnClickListener() {
             @Override public void onClick(View view) {
                 onDelete();
@@ -158,8 +225,19 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     }
 
     private void startServices() {
+        threadingProfile = ThreadingProfile.parse(getString(R.string.THREADING_PROFILE));
+        benchmarkThreading = Boolean.parseBoolean(getString(R.string.BENCHMARK_THREADING_PROFILES));
+        benchmarkGalleryIndex = Boolean.parseBoolean(getString(R.string.BENCHMARK_GALLERY_INDEX));
+        benchmarkFaceDetector = getString(R.string.BENCHMARK_FACE_DETECTOR);
+        onDeviceEnrollment = Boolean.parseBoolean(getString(R.string.ON_DEVICE_ENROLLMENT));
+        onDeviceTraining = Boolean.parseBoolean(getString(R.string.ON_DEVICE_TRAINING));
+        final int reclassifyInterval = Integer.parseInt(getString(R.string.TRACKER_RECLASSIFY_INTERVAL));
+        if (reclassifyInterval > 0) {
+            faceTracker = new FaceTracker(reclassifyInterval, Integer.parseInt(getString(R.string.TRACKER_VOTES)));
+        }
         customVisionService = new CustomVisionService(getString(R.string.CUSTOM_VISION_TRAINING_KEY), getString(R.string.CUSTOM_VISION_PROJECT_ID), getApplicationContext());
-        vstsService = new VstsService(getString(R.string.VSTS_PAT), getString(R.string.VSTS_PROJECT_NAME));
+        vstsService = new VstsService(getString(R.string.VSTS_PAT), getString(R.string.VSTS_PROJECT_NAME),
+                Integer.parseInt(getString(R.string.HTTP_MAX_REQUESTS_PER_HOST)));
 
         //AppCenter.start(getApplication(), "", Assets.class);
 
@@ -173,11 +251,14 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     }
 
     private void getTagsInBackground() {
-        new Thread(new Runnable() {
-            @Override public void run() {
-                mTags = customVisionService.getTags();
+        customVisionService.getTags(new ServiceCallback<Tag[]>() {
+            @Override public void onResult(ServiceResult<Tag[]> result) {
+                // Keep the tags we had if the service cannot be reached.
+                if (result.isSuccessful()) {
+                    mTags = result.getValue();
+                }
             }
-        }).start();
+        });
     }
 
     private void checkAssets() {
@@ -386,20 +467,54 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     }
 
     private void onDelete() {
+        final List<String> ids = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final Tag[] tags = mTags;
+        if (tags != null) {
+            for (Tag tag : tags) {
+                ids.add(tag.getId());
+                names.add(tag.getName());
+            }
+        }
+        final EmbeddingGallery enrolled;
+        synchronized (this) {
+            enrolled = gallery;
+        }
+        if (enrolled != null) {
+            // People enrolled on the device only, the service has no tag for them.
+            enrolled.getTags(LOCAL_TAG_PREFIX, ids, names);
+        }
         new AlertDialog.Builder(ClassifierActivity.this)
                 .setTitle(getString(R.string.select_label))
-                .setItems(getChoices(false), new DialogInterface.OnClickListener() {
+                .setItems(names.toArray(new String[names.size()]), new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialogInterface, final int i) {
                         dialogInterface.dismiss();
-                        final String tagId = getTagId(i);
+                        final String tagId = ids.get(i);
                         deleteButton.setVisibility(View.GONE);
                         progressBar3.setVisibility(View.VISIBLE);
                         progressBar3.animate();
                         runInBackground(new Runnable() {
                             @Override public void run() {
-                                customVisionService.deleteTagAndItsImages(tagId, ClassifierActivity.this);
-                                getTagsInBackground();
+                                boolean removed = true;
+                                synchronized (ClassifierActivity.this) {
+                                    if (embeddingStore != null) {
+                                        try {
+                                            embeddingStore.remove(tagId);
+                                            retrainHead();
+                                        } catch (IOException e) {
+                                            LOGGER.e(e, "Could not remove %s from the embedding gallery", tagId);
+                                            removed = false;
+                                        }
+                                    }
+                                }
+                                if (!tagId.startsWith(LOCAL_TAG_PREFIX)) {
+                                    customVisionService.deleteTagAndItsImages(tagId, ClassifierActivity.this);
+                                } else if (removed) {
+                                    onImagesDeleted();
+                                } else {
+                                    onDeleteFailure(0);
+                                }
                             }
                         });
                     }
@@ -460,8 +575,12 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     }
 
     @Override public void onUploadSuccess() {
+        getTagsInBackground();
         runOnUiThread(new Runnable() {
             @Override public void run() {
+                if (isFinishing()) {
+                    return;
+                }
                 showCompletion(addButton, progressBar2, R.drawable.check_green, android.R.color.holo_green_dark);
 
                 AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(ClassifierActivity.this);
@@ -484,8 +603,12 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     }
 
     @Override public void onUploadFailure(final int responseCode, final boolean duplicates) {
+        getTagsInBackground();
         runOnUiThread(new Runnable() {
             @Override public void run() {
+                if (isFinishing()) {
+                    return;
+                }
                 showCompletion(addButton, progressBar2, R.drawable.close_red, android.R.color.holo_red_dark);
                 if (responseCode == 401) {
                     showUnauthorized();
@@ -498,7 +621,26 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
         });
     }
 
+    @Override public void onUploadProgress(int done, int total) {
+        LOGGER.i("Uploaded %d of %d images", done, total);
+    }
+
+    @Override public void onUploadPartial(final UploadReport report) {
+        getTagsInBackground();
+        runOnUiThread(new Runnable() {
+            @Override public void run() {
+                if (isFinishing()) {
+                    return;
+                }
+                showCompletion(addButton, progressBar2, R.drawable.check_green, android.R.color.holo_orange_dark);
+                showError(getString(R.string.upload_partial, report.getCount(UploadReport.Status.UPLOADED), report.size(),
+                        report.getCount(UploadReport.Status.DUPLICATE), report.getCount(UploadReport.Status.FAILED)));
+            }
+        });
+    }
+
     @Override public void onImagesDeleted() {
+        getTagsInBackground();
         runOnUiThread(new Runnable() {
             @Override public void run() {
                 showCompletion(deleteButton, progressBar3, R.drawable.check_green, android.R.color.holo_green_dark);
@@ -507,6 +649,7 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     }
 
     @Override public void onDeleteFailure(final int responseCode) {
+        getTagsInBackground();
         runOnUiThread(new Runnable() {
             @Override public void run() {
                 showCompletion(deleteButton, progressBar3, R.drawable.close_red, android.R.color.holo_red_dark);
@@ -634,9 +777,56 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
         }, 0, 5000);
     }
 
+    /**
+     * Picks a still and scans it tile by tile for everyone the model knows.
+     */
+    private void onScan() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("image/*");
+        startActivityForResult(intent, SCAN_REQUEST);
+    }
+
+    private void scanImage(Uri uri) {
+        List<Recognition> found;
+        final int orientation = BitmapDecoder.readOrientation(getContentResolver(), uri);
+        try (InputStream is = getContentResolver().openInputStream(uri)) {
+            found = new TiledScanner(classifier).scan(is, orientation, SCAN_MIN_CONFIDENCE);
+        } catch (IOException e) {
+            LOGGER.e(e, "Could not scan %s", uri);
+            found = new ArrayList<>();
+        }
+        final String[] items = new String[found.size()];
+        for (int i = 0; i < items.length; i++) {
+            final Recognition r = found.get(i);
+            final RectF location = r.getLocation();
+            items[i] = String.format(Locale.getDefault(), "%s %.0f%% (%.0f, %.0f, %.0fx%.0f)", r.getTitle(),
+                    r.getConfidence() * 100.f, location.left, location.top, location.width(), location.height());
+        }
+        runOnUiThread(new Runnable() {
+            @Override public void run() {
+                AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(ClassifierActivity.this);
+                if (items.length == 0) {
+                    dialogBuilder.setMessage(R.string.scan_no_match);
+                } else {
+                    dialogBuilder.setItems(items, null);
+                }
+                dialogBuilder.setPositiveButton("OK", null);
+                dialogBuilder.show();
+            }
+        });
+    }
+
     @Override
     protected void onActivityResult(int requestCode, final int resultCode, Intent data) {
-        if (resultCode == RESULT_OK && requestCode == 123) {
+        if (resultCode == RESULT_OK && requestCode == SCAN_REQUEST) {
+            final Uri uri = data.getData();
+            mUploadRunnable = new Runnable() {
+                @Override public void run() {
+                    scanImage(uri);
+                }
+            };
+        } else if (resultCode == RESULT_OK && requestCode == 123) {
             addButton.setVisibility(View.GONE);
             progressBar2.animate();
             progressBar2.setVisibility(View.VISIBLE);
@@ -650,11 +840,26 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
                 for (int i = 0; i < clipData.getItemCount(); i++)
                     uris.add(clipData.getItemAt(i).getUri());
             }
+            // Keep read access, an upload may be retried after the app restarts. The upload
+            // scheduler releases it once the upload is done.
+            if (!onDeviceEnrollment) {
+                for (Uri uri : uris) {
+                    try {
+                        getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    } catch (SecurityException e) {
+                        LOGGER.w("Cannot keep access to %s", uri);
+                    }
+                }
+            }
 
             mUploadRunnable = new Runnable() {
                 @Override public void run() {
                     try {
-                        updateData(mLabelId, mLabel, getContentResolver(), uris);
+                        if (onDeviceEnrollment) {
+                            enrollLocally(mLabelId, mLabel, getContentResolver(), uris);
+                        } else {
+                            updateData(mLabelId, mLabel, getContentResolver(), uris);
+                        }
                     } catch (Exception e) {
                         LOGGER.e(e, "Exception!");
                     }
@@ -663,21 +868,263 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
         }
     }
 
-    void updateData(String labelId, String label, ContentResolver contentResolver, ArrayList<Uri> uris) {
-        synchronized (this) {
-            customVisionService.createImagesFromFiles(contentResolver, labelId, label, uris, this);
-            getTagsInBackground();
+    /**
+     * Enrolls the largest face of every picked image into the on-device embedding gallery.
+     * Takes effect for the next frame, no upload or model build is involved.
+     */
+    void enrollLocally(String labelId, String label, ContentResolver contentResolver, ArrayList<Uri> uris) {
+        final String tagId = labelId.length() > 0 ? labelId : LOCAL_TAG_PREFIX + label;
+        if (classifier == null) {
+            classifier = new MSCognitiveServicesClassifier(ClassifierActivity.this, threadingProfile, getString(R.string.EMBEDDING_LAYER));
+        }
+        int enrolled = 0;
+        for (Uri uri : uris) {
+            Bitmap bitmap = null;
+            try {
+                // Upright, so the faces match the live ones turned by the sensor orientation.
+                bitmap = enrollmentDecoder.decode(contentResolver, uri, ENROLLMENT_IMAGE_SIZE);
+                if (bitmap == null) {
+                    continue;
+                }
+                final List<RectF> faces = new ArrayList<>(1);
+                faces.add(findLargestFace(bitmap));
+                final float[] embedding = classifier.computeEmbeddings(bitmap, 0, faces);
+                synchronized (this) {
+                    openEmbeddingStore();
+                    embeddingStore.enroll(tagId, label, embedding, 0);
+                }
+                enrolled++;
+            } catch (Exception e) {
+                LOGGER.e(e, "Could not enroll %s", uri);
+            } finally {
+                enrollmentDecoder.release(bitmap);
+            }
+        }
+        enrollmentDecoder.clear();
+        LOGGER.i("Enrolled %d of %d images for %s", enrolled, uris.size(), label);
+        if (enrolled > 0) {
+            maintainGallery();
+            retrainHead();
+            showCompletion(addButton, progressBar2, R.drawable.check_green, android.R.color.holo_green_dark);
+        } else {
+            showCompletion(addButton, progressBar2, R.drawable.close_red, android.R.color.holo_red_dark);
         }
     }
 
+    /**
+     * Opens the persisted gallery once the embedding size is known. Callers hold the activity lock.
+     */
+    private void openEmbeddingStore() throws IOException {
+        if (embeddingStore == null) {
+            final File dir = new File(getFilesDir(), GALLERY_DIR);
+            embeddingStore = EmbeddingStore.open(dir, classifier.getEmbeddingSize());
+            gallery = embeddingStore.getGallery();
+            if (onDeviceTraining) {
+                final File headFile = new File(dir, HEAD_FILE);
+                headTrainer = new HeadTrainer(gallery, headFile);
+                LinearHead saved = null;
+                try {
+                    saved = LinearHead.load(headFile);
+                } catch (IOException e) {
+                    // A broken head must not keep the gallery from opening, a new one is trained.
+                    LOGGER.e(e, "Discarding unreadable head");
+                    headFile.delete();
+                    retrainHead();
+                }
+                applyHead(saved);
+            }
+        }
+    }
+
+    /**
+     * Fits the on-device head to the gallery again, recognition switches over once it is done.
+     */
+    private void retrainHead() {
+        if (headTrainer != null) {
+            headTrainer.schedule(new HeadTrainer.Callback() {
+                @Override public void onHeadTrained(LinearHead trained) {
+                    synchronized (ClassifierActivity.this) {
+                        applyHead(trained);
+                    }
+                }
+            });
+        }
+    }
+
+    private void applyHead(LinearHead trained) {
+        try {
+            classifier.setHead(trained);
+            head = trained;
+        } catch (IllegalArgumentException e) {
+            LOGGER.w("Ignoring head: %s", e.getMessage());
+            classifier.setHead(null);
+            head = null;
+        }
+    }
+
+    /**
+     * Indexes the gallery once it is large enough and compacts the store if needed, on the
+     * gallery thread. Neither holds the gallery lock for long, so recognition continues meanwhile.
+     */
+    private synchronized void maintainGallery() {
+        if (embeddingStore == null) {
+            return;
+        }
+        final EmbeddingStore store = embeddingStore;
+        final EmbeddingGallery opened = gallery;
+        galleryExecutor.execute(new Runnable() {
+            @Override public void run() {
+                opened.ensureIndex();
+                try {
+                    if (store.needsCompaction()) {
+                        store.compact();
+                    }
+                } catch (IOException e) {
+                    LOGGER.e(e, "Could not compact the embedding gallery");
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the largest detected face of the bitmap, or null (center square) if there is none.
+     */
+    private RectF findLargestFace(Bitmap bitmap) {
+        if (faceDetector == null) {
+            return null;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final float[] box = new float[4];
+        if (faceDetector.detect(toLuma(bitmap), width, height, width, 0, MIN_FACE_SIZE, box) == 0) {
+            return null;
+        }
+        return new RectF(box[0], box[1], box[2], box[3]);
+    }
+
+    private static byte[] toLuma(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] argb = new int[width * height];
+        bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+        final byte[] luma = new byte[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            final int val = argb[i];
+            luma[i] = (byte) ((77 * ((val >> 16) & 0xFF) + 150 * ((val >> 8) & 0xFF) + 29 * (val & 0xFF)) >> 8);
+        }
+        return luma;
+    }
+
+    /**
+     * Logs the recall and time per image of the face detector over the labelled images listed in
+     * the asset {@code listFile}, one "image left top right bottom ..." line per upright image.
+     */
+    private void measureFaceDetector(String listFile) {
+        final List<byte[]> images = new ArrayList<>();
+        final List<int[]> sizes = new ArrayList<>();
+        final List<float[]> truth = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(getAssets().open(listFile)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length < 1 || fields[0].isEmpty()) {
+                    continue;
+                }
+                final Bitmap bitmap;
+                try (InputStream is = getAssets().open(fields[0])) {
+                    bitmap = BitmapFactory.decodeStream(is);
+                }
+                if (bitmap == null) {
+                    LOGGER.w("Cannot decode %s", fields[0]);
+                    continue;
+                }
+                final float[] faces = new float[(fields.length - 1) / 4 * 4];
+                for (int i = 0; i < faces.length; i++) {
+                    faces[i] = Float.parseFloat(fields[i + 1]);
+                }
+                images.add(toLuma(bitmap));
+                sizes.add(new int[] {bitmap.getWidth(), bitmap.getHeight()});
+                truth.add(faces);
+                bitmap.recycle();
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.e(e, "Cannot read the labelled images of %s", listFile);
+            return;
+        }
+        final int[] widths = new int[sizes.size()];
+        final int[] heights = new int[sizes.size()];
+        for (int i = 0; i < sizes.size(); i++) {
+            widths[i] = sizes.get(i)[0];
+            heights[i] = sizes.get(i)[1];
+        }
+        FaceDetector.measureRecall(faceDetector, images.toArray(new byte[0][]), widths, heights, MIN_FACE_SIZE,
+                truth.toArray(new float[0][]));
+    }
+
+    void updateData(String labelId, String label, ContentResolver contentResolver, ArrayList<Uri> uris) {
+        // Queued, the upload runs and retries in the background and reports through the callbacks.
+        customVisionService.createImagesFromFiles(contentResolver, labelId, label, uris, this, new ServiceCallback<String>() {
+            @Override public void onResult(ServiceResult<String> result) {
+                // A new tag is listed right away, not once the upload reports back.
+                if (result.isSuccessful()) {
+                    getTagsInBackground();
+                }
+            }
+        });
+    }
+
     @Override
     public void onPreviewSizeChosen(final Size size, final int rotation) {
         final float textSizePx = TypedValue.applyDimension(
                 TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, getResources().getDisplayMetrics());
         borderedText = new BorderedText(textSizePx);
         borderedText.setTypeface(Typeface.MONOSPACE);
-
-        classifier = new MSCognitiveServicesClassifier(ClassifierActivity.this);
+        boxPaint = new Paint();
+        boxPaint.setColor(Color.GREEN);
+        boxPaint.setStyle(Paint.Style.STROKE);
+        boxPaint.setStrokeWidth(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 2, getResources().getDisplayMetrics()));
+
+        classifier = new MSCognitiveServicesClassifier(ClassifierActivity.this, threadingProfile, getString(R.string.EMBEDDING_LAYER));
+        if (faceDetector == null) {
+            faceDetector = FaceDetector.fromAsset(getAssets(), getString(R.string.FACE_CASCADE_FILE), FACE_DETECTION_DOWNSAMPLE);
+        }
+        if (faceDetector != null && !benchmarkFaceDetector.isEmpty()) {
+            final String listFile = benchmarkFaceDetector;
+            benchmarkFaceDetector = "";
+            // Its own thread, the frames keep coming meanwhile.
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    measureFaceDetector(listFile);
+                }
+            }, "FaceDetectorBenchmark").start();
+        }
+        if (onDeviceEnrollment && classifier.hasEmbeddingLayer()) {
+            runInBackground(new Runnable() {
+                @Override public void run() {
+                    try {
+                        synchronized (ClassifierActivity.this) {
+                            openEmbeddingStore();
+                        }
+                    } catch (IOException e) {
+                        LOGGER.e(e, "Could not open the embedding gallery");
+                        return;
+                    }
+                    // Recognition uses the exact scan until the index is published.
+                    maintainGallery();
+                }
+            });
+        }
+        if (benchmarkGalleryIndex && classifier.hasEmbeddingLayer()) {
+            benchmarkGalleryIndex = false;
+            final int embeddingSize = classifier.getEmbeddingSize();
+            // Its own thread, building the larger indexes would stall the frames for seconds.
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    HnswIndex.benchmark(embeddingSize, new int[] {1000, 10000, 100000}, 200,
+                            EmbeddingGallery.INDEX_M, EmbeddingGallery.INDEX_EF_CONSTRUCTION, EmbeddingGallery.INDEX_EF_SEARCH);
+                }
+            }, "GalleryIndexBenchmark").start();
+        }
 
         previewWidth = size.getWidth();
         previewHeight = size.getHeight();
@@ -698,6 +1145,7 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
                 new OverlayView.DrawCallback() {
                     @Override
                     public void drawCallback(final Canvas canvas) {
+                        renderRecognitions(canvas);
                         renderDebug(canvas);
                     }
                 });
@@ -710,21 +1158,42 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
                 new Runnable() {
                     @Override
                     public void run() {
-                        final long startTime = SystemClock.uptimeMillis();
-                        Recognition r = classifier.classifyImage(rgbFrameBitmap, sensorOrientation);
-                        lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-                        final List<Recognition> results = new ArrayList<>();
-
-                        if (r.getConfidence() > 0.7) {
-                            results.add(r);
+                        if (benchmarkThreading) {
+                            benchmarkThreading = false;
+                            MSCognitiveServicesClassifier.benchmarkResampler(rgbFrameBitmap, sensorOrientation, 10);
+                            threadingProfile = MSCognitiveServicesClassifier.benchmarkThreadingProfiles(
+                                    ClassifierActivity.this, rgbFrameBitmap, sensorOrientation, 10);
+                            classifier.close();
+                            classifier = new MSCognitiveServicesClassifier(ClassifierActivity.this, threadingProfile, getString(R.string.EMBEDDING_LAYER));
+                            applyHead(head);
+                        }
+                        final RecognitionBuffer results = resultBuffers[nextResultBuffer];
+                        nextResultBuffer = (nextResultBuffer + 1) % resultBuffers.length;
+                        if (faceTracker != null && faceDetector != null) {
+                            trackAndRecognize(results);
+                        } else {
+                            frameFaces.clear();
+                            if (faceDetector != null) {
+                                final int count = detectFaces();
+                                for (int i = 0; i < count; i++) {
+                                    frameFaces.add(faceRect(i, faceBoxes[i * 4], faceBoxes[i * 4 + 1], faceBoxes[i * 4 + 2], faceBoxes[i * 4 + 3]));
+                                }
+                            } else {
+                                // Without a detector the center square is classified.
+                                frameFaces.add(null);
+                            }
+                            recognize(frameFaces, results);
+                            results.removeUnlabeled();
                         }
 
-                        LOGGER.i("Detect: %s", results);
+                        if (LOGGER.isLoggable(Log.VERBOSE)) {
+                            LOGGER.v("Detect: %s", results);
+                        }
                         if (resultsView == null) {
                             resultsView = findViewById(R.id.results);
                         }
                         resultsView.setResults(results);
+                        lastResults = results;
                         requestRender();
                         computing = false;
                         if (postInferenceCallback != null) {
@@ -735,10 +1204,152 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
 
     }
 
+    /**
+     * Runs the detector on the luma plane, turned upright by the sensor orientation, into
+     * {@link #faceBoxes} in frame coordinates.
+     *
+     * @return the number of faces found
+     */
+    private int detectFaces() {
+        final long detectionStartTime = SystemClock.uptimeMillis();
+        final int count = faceDetector.detect(yuvBytes[0], previewWidth, previewHeight, lumaStride(), sensorOrientation,
+                MIN_FACE_SIZE, faceBoxes);
+        lastDetectionTimeMs = SystemClock.uptimeMillis() - detectionStartTime;
+        return count;
+    }
+
+    private int lumaStride() {
+        return yRowStride > 0 ? yRowStride : previewWidth;
+    }
+
+    /**
+     * @return {@code faceRects[i]}, set to the given box
+     */
+    private RectF faceRect(int i, float left, float top, float right, float bottom) {
+        if (faceRects[i] == null) {
+            faceRects[i] = new RectF();
+        }
+        faceRects[i].set(left, top, right, bottom);
+        return faceRects[i];
+    }
+
+    /**
+     * Moves the face tracks to the current frame, re-detects every {@link #DETECTION_INTERVAL}
+     * frames and classifies only the tracks that ask for it.
+     *
+     * @param results receives the voted recognition of every track
+     */
+    private void trackAndRecognize(final RecognitionBuffer results) {
+        final byte[] luma = yuvBytes[0];
+        faceTracker.track(luma, previewWidth, previewHeight, lumaStride());
+        if (trackedFrames++ % DETECTION_INTERVAL == 0 || faceTracker.isEmpty()) {
+            final int count = detectFaces();
+            faceTracker.addDetections(faceBoxes, count, luma, previewWidth, previewHeight, lumaStride());
+        }
+
+        faceTracker.needsClassification(dueTracks, MSCognitiveServicesClassifier.MAX_BATCH);
+        if (!dueTracks.isEmpty()) {
+            frameFaces.clear();
+            for (int i = 0; i < dueTracks.size(); i++) {
+                final RectF box = dueTracks.get(i).box;
+                frameFaces.add(faceRect(i, box.left, box.top, box.right, box.bottom));
+            }
+            recognize(frameFaces, recognized);
+            for (int i = 0; i < recognized.size(); i++) {
+                faceTracker.addRecognition(dueTracks.get(i), recognized.getLabel(i), recognized.getScore(i));
+            }
+        }
+        faceTracker.getRecognitions(results);
+    }
+
+    /**
+     * Recognizes every face, by the enrolled gallery or the classifier, into one entry per face
+     * of {@code results}. Faces the match was not confident about get
+     * {@link RecognitionBuffer#NO_LABEL}.
+     */
+    private void recognize(final List<RectF> faces, final RecognitionBuffer results) {
+        results.clear();
+        if (faces.isEmpty()) {
+            return;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        if (onDeviceEnrollment && gallery != null && gallery.size() > 0 && !classifier.hasHead()) {
+            recognizeEnrolled(faces, results);
+        } else {
+            classifier.classifyFaces(rgbFrameBitmap, sensorOrientation, faces, results);
+            for (int i = 0; i < results.size(); i++) {
+                if (!(results.getScore(i) > 0.7)) {
+                    results.set(i, RecognitionBuffer.NO_LABEL, 0.f);
+                }
+            }
+        }
+        lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+    }
+
+    /**
+     * Matches the embedding of every face against the enrolled gallery.
+     */
+    private void recognizeEnrolled(final List<RectF> faces, final RecognitionBuffer results) {
+        final float[] embeddings = classifier.computeEmbeddings(rgbFrameBitmap, sensorOrientation, faces);
+        final int dimension = gallery.getDimension();
+        for (int f = 0; f * dimension < embeddings.length; f++) {
+            final int i = results.add(faces.get(f));
+            final int tag = gallery.nearest(embeddings, f * dimension, matchScore);
+            if (tag >= 0 && matchScore[0] > EMBEDDING_MATCH_THRESHOLD) {
+                results.set(i, RecognitionBuffer.intern(gallery.getTagId(tag), gallery.getTagName(tag)), matchScore[0]);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onDestroy() {
+        if (headTrainer != null) {
+            headTrainer.shutdown();
+            headTrainer = null;
+        }
+        if (embeddingStore != null) {
+            // Closed on the gallery thread, after a compaction in progress has switched files.
+            final EmbeddingStore store = embeddingStore;
+            galleryExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    store.close();
+                }
+            });
+            embeddingStore = null;
+            gallery = null;
+        }
+        galleryExecutor.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public void onSetDebug(boolean debug) {
     }
 
+    /**
+     * Draws the box and label of every recognized face in one pass over the overlay.
+     */
+    private void renderRecognitions(final Canvas canvas) {
+        final RecognitionBuffer results = lastResults;
+        if (results == null || results.isEmpty() || !results.hasBox(0)) {
+            return;
+        }
+        final Matrix frameToCanvas = ImageUtils.getTransformationMatrix(
+                previewWidth, previewHeight, canvas.getWidth(), canvas.getHeight(), sensorOrientation, true);
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.hasBox(i)) {
+                continue;
+            }
+            results.getBox(i, renderBox);
+            frameToCanvas.mapRect(renderBox);
+            canvas.drawRect(renderBox, boxPaint);
+            final String title = results.getTitle(i);
+            if (title != null) {
+                borderedText.drawText(canvas, renderBox.left, renderBox.top, title);
+            }
+        }
+    }
+
     private void renderDebug(final Canvas canvas) {
         if (!isDebug()) {
             return;
@@ -746,6 +1357,10 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
 
         final Vector<String> lines = new Vector<>();
         lines.add("Inference time: " + lastProcessingTimeMs + "ms");
+        if (faceDetector != null) {
+            lines.add("Face detection time: " + lastDetectionTimeMs + "ms");
+        }
+        lines.add("Cache: " + MSCognitiveServicesClassifier.getCacheStats());
         borderedText.drawLines(canvas, 10, canvas.getHeight() - 10, lines);
     }
 }
@@ -0,0 +1,351 @@
+package pp.facerecognizer;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Enrolled face embeddings, recognized by cosine nearest neighbour.
+ * <p>
+ * Embeddings are L2-normalized on enrollment and stored row by row in one primitive float matrix,
+ * so a query is a single sequential scan of dot products over contiguous memory. Each row keeps
+ * the ordinal of the tag it belongs to; ordinals are never reused after a tag is removed.
+ * A gallery opened by {@link EmbeddingStore} additionally scans a read-only base segment, a
+ * memory-mapped buffer holding each tag's embeddings as one contiguous range. Once the gallery
+ * holds {@link #INDEX_THRESHOLD} embeddings, {@link #ensureIndex()} builds an {@link HnswIndex} that
+ * mirrors every enroll and remove, and queries go through it from then on.
+ */
+class EmbeddingGallery {
+
+    static final int INDEX_THRESHOLD = 1000;
+    static final int INDEX_M = 16;
+    static final int INDEX_EF_CONSTRUCTION = 100;
+    static final int INDEX_EF_SEARCH = 50;
+    private static final int BASE_CHUNK_ROWS = 256;
+
+    private final int dimension;
+    private float[] matrix;
+    private int[] rowTag;
+    private int rows;
+
+    // Read-only base segment, ranges indexed by tag ordinal.
+    private final FloatBuffer base;
+    private final int[] baseStart;
+    private final int[] baseCount;
+    private int baseRows;
+    private float[] baseChunk;
+
+    private final List<String> tagIds = new ArrayList<>();
+    private final List<String> tagNames = new ArrayList<>();
+    private final Map<String, Integer> tagOrdinals = new HashMap<>();
+
+    // Published once built, the index locks itself, so queries through it skip the gallery lock.
+    private volatile HnswIndex index;
+    private int efSearch = INDEX_EF_SEARCH;
+    // Changes made while the index is being built, replayed into it before it is published.
+    private boolean indexing;
+    private float[] pendingVectors;
+    private int[] pendingTags;
+    private int pendingRows;
+    private final List<Integer> pendingRemovals = new ArrayList<>();
+
+    EmbeddingGallery(int dimension) {
+        this(dimension, null, new String[0], new String[0], new int[0], new int[0]);
+    }
+
+    /**
+     * @param base normalized embeddings, tag {@code t} owns rows
+     *             {@code [start[t], start[t] + count[t])}
+     */
+    EmbeddingGallery(int dimension, FloatBuffer base, String[] ids, String[] names, int[] start, int[] count) {
+        this.dimension = dimension;
+        this.matrix = new float[16 * dimension];
+        this.rowTag = new int[16];
+        this.base = base;
+        this.baseStart = start;
+        this.baseCount = count;
+        for (int t = 0; t < ids.length; t++) {
+            tagIds.add(ids[t]);
+            tagNames.add(names[t]);
+            tagOrdinals.put(ids[t], t);
+            baseRows += count[t];
+        }
+    }
+
+    /**
+     * Sets the breadth of the approximate search, higher values trade latency for recall.
+     */
+    synchronized void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+        if (index != null) {
+            index.setEfSearch(efSearch);
+        }
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    synchronized int size() {
+        return baseRows + rows;
+    }
+
+    synchronized String getTagId(int tag) {
+        return tagIds.get(tag);
+    }
+
+    synchronized String getTagName(int tag) {
+        return tagNames.get(tag);
+    }
+
+    /**
+     * Adds the id and name of every enrolled tag whose id starts with {@code prefix}.
+     */
+    synchronized void getTags(String prefix, List<String> ids, List<String> names) {
+        for (int t = 0; t < tagIds.size(); t++) {
+            if (tagIds.get(t) != null && tagIds.get(t).startsWith(prefix)) {
+                ids.add(tagIds.get(t));
+                names.add(tagNames.get(t));
+            }
+        }
+    }
+
+    /**
+     * Adds the embedding at {@code src[offset .. offset + dimension)} to the tag.
+     *
+     * @return the row index of the new entry
+     */
+    synchronized int enroll(String tagId, String tagName, float[] src, int offset) {
+        Integer ordinal = tagOrdinals.get(tagId);
+        if (ordinal == null) {
+            ordinal = tagIds.size();
+            tagIds.add(tagId);
+            tagNames.add(tagName);
+            tagOrdinals.put(tagId, ordinal);
+        }
+        final int tag = ordinal;
+        if (rows == rowTag.length) {
+            float[] grownMatrix = new float[matrix.length * 2];
+            System.arraycopy(matrix, 0, grownMatrix, 0, rows * dimension);
+            matrix = grownMatrix;
+            int[] grownTags = new int[rowTag.length * 2];
+            System.arraycopy(rowTag, 0, grownTags, 0, rows);
+            rowTag = grownTags;
+        }
+        normalize(src, offset, matrix, rows * dimension, dimension);
+        rowTag[rows] = tag;
+        rows++;
+        if (index != null) {
+            index.insert(tag, matrix, (rows - 1) * dimension);
+        } else if (indexing) {
+            addPending(tag, matrix, (rows - 1) * dimension);
+        }
+        return rows - 1;
+    }
+
+    /**
+     * Removes every embedding of the tag, compacting the matrix in place.
+     */
+    synchronized void remove(String tagId) {
+        final Integer ordinal = tagOrdinals.remove(tagId);
+        if (ordinal == null) {
+            return;
+        }
+        final int tag = ordinal;
+        int kept = 0;
+        for (int r = 0; r < rows; r++) {
+            if (rowTag[r] == tag) {
+                continue;
+            }
+            if (kept != r) {
+                System.arraycopy(matrix, r * dimension, matrix, kept * dimension, dimension);
+            }
+            rowTag[kept++] = rowTag[r];
+        }
+        rows = kept;
+        if (tag < baseCount.length) {
+            baseRows -= baseCount[tag];
+            baseCount[tag] = 0;
+        }
+        tagIds.set(tag, null);
+        tagNames.set(tag, null);
+        if (index != null) {
+            index.removeLabel(tag);
+        } else if (indexing) {
+            pendingRemovals.add(tag);
+        }
+    }
+
+    /**
+     * Copies every embedding into {@code vectors} and its tag ordinal into {@code tags}. Callers
+     * size both for {@link #size()} rows while holding the gallery lock.
+     */
+    synchronized void copyRows(float[] vectors, int[] tags) {
+        int row = 0;
+        for (int t = 0; t < baseCount.length; t++) {
+            for (int done = 0; done < baseCount[t]; ) {
+                final int n = readBase(baseStart[t] + done, baseCount[t] - done);
+                System.arraycopy(baseChunk, 0, vectors, row * dimension, n * dimension);
+                Arrays.fill(tags, row, row + n, t);
+                row += n;
+                done += n;
+            }
+        }
+        System.arraycopy(matrix, 0, vectors, row * dimension, rows * dimension);
+        System.arraycopy(rowTag, 0, tags, row, rows);
+    }
+
+    /**
+     * Builds the approximate index if the gallery is large enough to need it and publishes it
+     * once done. The gallery lock is held only to copy the rows and to publish, queries keep
+     * using the exact scan meanwhile. Blocks for the whole build, so call it off the UI and
+     * recognition threads.
+     */
+    void ensureIndex() {
+        final float[] vectors;
+        final int[] tags;
+        synchronized (this) {
+            if (index != null || indexing || size() < INDEX_THRESHOLD) {
+                return;
+            }
+            vectors = new float[size() * dimension];
+            tags = new int[size()];
+            copyRows(vectors, tags);
+            indexing = true;
+            pendingVectors = new float[16 * dimension];
+            pendingTags = new int[16];
+            pendingRows = 0;
+        }
+        final HnswIndex built = new HnswIndex(dimension, INDEX_M, INDEX_EF_CONSTRUCTION, INDEX_EF_SEARCH);
+        boolean complete = false;
+        try {
+            for (int r = 0; r < tags.length; r++) {
+                built.insert(tags[r], vectors, r * dimension);
+            }
+            complete = true;
+        } finally {
+            synchronized (this) {
+                if (complete) {
+                    for (int r = 0; r < pendingRows; r++) {
+                        built.insert(pendingTags[r], pendingVectors, r * dimension);
+                    }
+                    for (int tag : pendingRemovals) {
+                        built.removeLabel(tag);
+                    }
+                    built.setEfSearch(efSearch);
+                    index = built;
+                }
+                indexing = false;
+                pendingVectors = null;
+                pendingTags = null;
+                pendingRows = 0;
+                pendingRemovals.clear();
+            }
+        }
+    }
+
+    private void addPending(int tag, float[] src, int offset) {
+        if (pendingRows == pendingTags.length) {
+            pendingVectors = Arrays.copyOf(pendingVectors, pendingVectors.length * 2);
+            pendingTags = Arrays.copyOf(pendingTags, pendingTags.length * 2);
+        }
+        System.arraycopy(src, offset, pendingVectors, pendingRows * dimension, dimension);
+        pendingTags[pendingRows++] = tag;
+    }
+
+    /**
+     * Copies up to a chunk of base rows starting at {@code row} into {@link #baseChunk}.
+     *
+     * @return the number of rows copied
+     */
+    private int readBase(int row, int count) {
+        if (baseChunk == null) {
+            baseChunk = new float[BASE_CHUNK_ROWS * dimension];
+        }
+        final int n = Math.min(count, BASE_CHUNK_ROWS);
+        base.position(row * dimension);
+        base.get(baseChunk, 0, n * dimension);
+        return n;
+    }
+
+    /**
+     * Finds the enrolled embedding closest to the query at {@code query[offset ..]}.
+     *
+     * @param score receives the cosine similarity of the match in {@code score[0]}
+     * @return the tag ordinal of the match, or -1 if the gallery is empty
+     */
+    int nearest(float[] query, int offset, float[] score) {
+        final HnswIndex index = this.index;
+        if (index != null) {
+            return index.nearest(query, offset, score);
+        }
+        return nearestExact(query, offset, score);
+    }
+
+    /**
+     * Brute-force scan over every enrolled embedding.
+     */
+    synchronized int nearestExact(float[] query, int offset, float[] score) {
+        final float[] q = new float[dimension];
+        normalize(query, offset, q, 0, dimension);
+
+        int bestTag = -1;
+        float best = -Float.MAX_VALUE;
+        final int d = dimension;
+        for (int t = 0; t < baseCount.length; t++) {
+            for (int done = 0; done < baseCount[t]; ) {
+                final int n = readBase(baseStart[t] + done, baseCount[t] - done);
+                for (int r = 0; r < n; r++) {
+                    final float dot = dot(baseChunk, r * d, q, d);
+                    if (dot > best) {
+                        best = dot;
+                        bestTag = t;
+                    }
+                }
+                done += n;
+            }
+        }
+        for (int r = 0; r < rows; r++) {
+            final float dot = dot(matrix, r * d, q, d);
+            if (dot > best) {
+                best = dot;
+                bestTag = rowTag[r];
+            }
+        }
+        if (bestTag < 0) {
+            return -1;
+        }
+        score[0] = best;
+        return bestTag;
+    }
+
+    private static float dot(float[] m, int base, float[] q, int d) {
+        // Four independent accumulators let the JIT keep the pipeline busy.
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < d; i += 4) {
+            s0 += m[base + i] * q[i];
+            s1 += m[base + i + 1] * q[i + 1];
+            s2 += m[base + i + 2] * q[i + 2];
+            s3 += m[base + i + 3] * q[i + 3];
+        }
+        for (; i < d; i++) {
+            s0 += m[base + i] * q[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static void normalize(float[] src, int srcOffset, float[] dst, int dstOffset, int length) {
+        float norm = 0;
+        for (int i = 0; i < length; i++) {
+            norm += src[srcOffset + i] * src[srcOffset + i];
+        }
+        final float inv = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0.f;
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = src[srcOffset + i] * inv;
+        }
+    }
+}
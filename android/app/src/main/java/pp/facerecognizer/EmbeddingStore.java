@@ -0,0 +1,492 @@
+package pp.facerecognizer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Persists an {@link EmbeddingGallery} across restarts.
+ * <p>
+ * {@code gallery.bin} holds normalized float32 embeddings at a fixed stride, grouped so every
+ * {@link pp.facerecognizer.connection.model.Tag} id owns one contiguous row range, followed by
+ * the tag table. The vector region is memory-mapped read-only, so opening costs the same for
+ * any number of embeddings. Enrollments and removals since the last compaction are appended to
+ * {@code gallery.log}, one checksummed record each, and replayed on open; a torn record left by a
+ * crash is cut off. {@link #compact()} merges both into a new {@code gallery.bin} without
+ * blocking recognition. Both files carry a generation number, and the base records how much of
+ * the previous journal it merged. If the process dies before the journal is switched, the records
+ * past that offset are carried over on open and the merged ones are ignored.
+ */
+class EmbeddingStore {
+    private static final Logger LOGGER = new Logger();
+
+    private static final String BASE_FILE = "gallery.bin";
+    private static final String JOURNAL_FILE = "gallery.log";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int BASE_MAGIC = 0x47414c42; // "GALB"
+    private static final int JOURNAL_MAGIC = 0x47414c4a; // "GALJ"
+    private static final int VERSION = 2;
+    // magic, version, dimension, generation, rows, tags, tag table offset, merged journal bytes
+    private static final int BASE_HEADER_SIZE = 40;
+    // Version 1 had no merged journal bytes.
+    private static final int BASE_HEADER_SIZE_V1 = 32;
+    private static final int JOURNAL_HEADER_SIZE = 12;
+
+    private static final byte RECORD_ENROLL = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private static final long COMPACT_MIN_JOURNAL_BYTES = 256 * 1024;
+
+    private final File dir;
+    private final int dimension;
+    private final EmbeddingGallery gallery;
+    private final Object compactLock = new Object();
+
+    private int generation;
+    // Bytes of the previous generation's journal the base holds, -1 if unknown.
+    private long mergedJournalEnd;
+    private RandomAccessFile journal;
+
+    // The base segment as last written, the input of the next compaction.
+    private ByteBuffer baseBytes;
+    private String[] baseIds;
+    private String[] baseNames;
+    private int[] baseStart;
+    private int[] baseCount;
+
+    private EmbeddingStore(File dir, int dimension) {
+        this.dir = dir;
+        this.dimension = dimension;
+        readBase();
+        this.gallery = new EmbeddingGallery(dimension,
+                baseBytes == null ? null : baseBytes.asFloatBuffer(),
+                baseIds, baseNames, baseStart, baseCount.clone());
+    }
+
+    /**
+     * Opens the gallery in {@code dir}, creating it if needed. Files written for a different
+     * embedding size are discarded.
+     */
+    static EmbeddingStore open(File dir, int dimension) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        final EmbeddingStore store = new EmbeddingStore(dir, dimension);
+        store.openJournal();
+        LOGGER.i("Opened embedding gallery: %d embeddings, generation %d", store.gallery.size(), store.generation);
+        return store;
+    }
+
+    EmbeddingGallery getGallery() {
+        return gallery;
+    }
+
+    /**
+     * Journals the embedding, then adds it to the gallery.
+     */
+    synchronized void enroll(String tagId, String tagName, float[] src, int offset) throws IOException {
+        final float[] normalized = new float[dimension];
+        EmbeddingGallery.normalize(src, offset, normalized, 0, dimension);
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(dimension * 4 + 64);
+        final DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(RECORD_ENROLL);
+        out.writeUTF(tagId);
+        out.writeUTF(tagName == null ? "" : tagName);
+        for (int i = 0; i < dimension; i++) {
+            out.writeFloat(normalized[i]);
+        }
+        append(payload.toByteArray());
+        gallery.enroll(tagId, tagName, normalized, 0);
+    }
+
+    /**
+     * Journals the removal, then drops every embedding of the tag from the gallery.
+     */
+    synchronized void remove(String tagId) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(RECORD_REMOVE);
+        out.writeUTF(tagId);
+        append(payload.toByteArray());
+        gallery.remove(tagId);
+    }
+
+    /**
+     * @return true once the journal is large compared to the base segment
+     */
+    synchronized boolean needsCompaction() throws IOException {
+        final long baseSize = baseBytes == null ? 0 : baseBytes.capacity();
+        return journal.length() > Math.max(COMPACT_MIN_JOURNAL_BYTES, baseSize / 4);
+    }
+
+    /**
+     * Folds the journal into a new base file. Runs on the calling thread but holds the store lock
+     * only while switching journals, so enrollments and queries continue meanwhile.
+     */
+    void compact() throws IOException {
+        synchronized (compactLock) {
+            final long journalEnd;
+            final int nextGeneration;
+            synchronized (this) {
+                journal.getChannel().force(false);
+                journalEnd = journal.length();
+                nextGeneration = generation + 1;
+            }
+
+            final Map<String, PendingTag> pending = new LinkedHashMap<>();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(new File(dir, JOURNAL_FILE)))) {
+                replay(new DataInputStream(in), journalEnd, pending, false);
+            }
+            final File tmp = new File(dir, BASE_FILE + TMP_SUFFIX);
+            writeBase(tmp, nextGeneration, journalEnd, pending);
+            if (!tmp.renameTo(new File(dir, BASE_FILE))) {
+                throw new IOException("Cannot replace " + BASE_FILE);
+            }
+
+            synchronized (this) {
+                // Carry over what was journaled while the base was being written.
+                switchJournal(journalEnd, nextGeneration);
+                readBase();
+                LOGGER.i("Compacted embedding gallery to generation %d", generation);
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with one of {@code nextGeneration} holding its records from
+     * {@code journalEnd} on.
+     */
+    private void switchJournal(long journalEnd, int nextGeneration) throws IOException {
+        final File tmpJournal = new File(dir, JOURNAL_FILE + TMP_SUFFIX);
+        try (RandomAccessFile next = new RandomAccessFile(tmpJournal, "rw")) {
+            next.setLength(0);
+            writeJournalHeader(next, nextGeneration);
+            final FileChannel from = journal.getChannel();
+            from.transferTo(journalEnd, Math.max(0, journal.length() - journalEnd), next.getChannel());
+            next.getChannel().force(true);
+        }
+        journal.close();
+        if (!tmpJournal.renameTo(new File(dir, JOURNAL_FILE))) {
+            throw new IOException("Cannot replace " + JOURNAL_FILE);
+        }
+        journal = new RandomAccessFile(new File(dir, JOURNAL_FILE), "rw");
+        journal.seek(journal.length());
+    }
+
+    synchronized void close() {
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (IOException e) {
+            LOGGER.e(e, "Could not close the embedding journal");
+        }
+    }
+
+    private void readBase() {
+        final File file = new File(dir, BASE_FILE);
+        baseBytes = null;
+        baseIds = new String[0];
+        baseNames = new String[0];
+        baseStart = new int[0];
+        baseCount = new int[0];
+        generation = 0;
+        mergedJournalEnd = -1;
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(BASE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            final int version = header.remaining() >= BASE_HEADER_SIZE_V1 && header.getInt() == BASE_MAGIC
+                    ? header.getInt() : 0;
+            final int headerSize = version == 1 ? BASE_HEADER_SIZE_V1 : BASE_HEADER_SIZE;
+            if ((version != 1 && version != VERSION) || header.limit() < headerSize
+                    || header.getInt() != dimension) {
+                LOGGER.w("Discarding incompatible embedding gallery");
+                discard();
+                return;
+            }
+            final int fileGeneration = header.getInt();
+            final int rows = header.getInt();
+            final int tags = header.getInt();
+            final long tableOffset = header.getLong();
+            final long merged = version == 1 ? -1 : header.getLong();
+
+            final DataInputStream table = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(tableOffset))));
+            final String[] ids = new String[tags];
+            final String[] names = new String[tags];
+            final int[] start = new int[tags];
+            final int[] count = new int[tags];
+            for (int t = 0; t < tags; t++) {
+                ids[t] = table.readUTF();
+                names[t] = table.readUTF();
+                start[t] = table.readInt();
+                count[t] = table.readInt();
+            }
+            // The mapping stays valid after the channel is closed.
+            final ByteBuffer vectors = channel.map(FileChannel.MapMode.READ_ONLY, headerSize, (long) rows * dimension * 4);
+            baseBytes = vectors.order(ByteOrder.LITTLE_ENDIAN);
+            baseIds = ids;
+            baseNames = names;
+            baseStart = start;
+            baseCount = count;
+            generation = fileGeneration;
+            mergedJournalEnd = merged;
+        } catch (IOException e) {
+            LOGGER.e(e, "Discarding unreadable embedding gallery");
+            discard();
+        }
+    }
+
+    private void discard() {
+        new File(dir, BASE_FILE).delete();
+        new File(dir, JOURNAL_FILE).delete();
+    }
+
+    private void openJournal() throws IOException {
+        final File file = new File(dir, JOURNAL_FILE);
+        journal = new RandomAccessFile(file, "rw");
+        boolean current = false;
+        if (journal.length() >= JOURNAL_HEADER_SIZE && journal.readInt() == JOURNAL_MAGIC) {
+            final int journalGeneration = journal.readInt();
+            if (journal.readInt() == dimension) {
+                current = journalGeneration == generation;
+                if (journalGeneration == generation - 1 && mergedJournalEnd >= JOURNAL_HEADER_SIZE) {
+                    // A compaction replaced the base but died before switching the journal.
+                    LOGGER.w("Carrying over %d journal bytes past the compacted base",
+                            Math.max(0, journal.length() - mergedJournalEnd));
+                    switchJournal(mergedJournalEnd, generation);
+                    current = true;
+                }
+            }
+        }
+        if (!current) {
+            // Missing, or already merged into the base by an interrupted compaction.
+            journal.setLength(0);
+            writeJournalHeader(journal, generation);
+            journal.getChannel().force(true);
+            return;
+        }
+
+        final long valid;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            valid = replay(new DataInputStream(in), journal.length(), new LinkedHashMap<String, PendingTag>(), true);
+        }
+        if (valid < journal.length()) {
+            LOGGER.w("Truncating embedding journal from %d to %d bytes", journal.length(), valid);
+            journal.setLength(valid);
+        }
+        journal.seek(valid);
+    }
+
+    private void writeJournalHeader(RandomAccessFile file, int generation) throws IOException {
+        file.seek(0);
+        file.writeInt(JOURNAL_MAGIC);
+        file.writeInt(generation);
+        file.writeInt(dimension);
+    }
+
+    private void append(byte[] payload) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        final FileChannel channel = journal.getChannel();
+        channel.position(journal.length());
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Folds the journal records up to {@code end} into {@code pending}, and into the gallery too
+     * if {@code toGallery} is set.
+     *
+     * @return the offset just past the last intact record
+     */
+    private long replay(DataInputStream in, long end, Map<String, PendingTag> pending, boolean toGallery) throws IOException {
+        in.skipBytes(JOURNAL_HEADER_SIZE);
+        long offset = JOURNAL_HEADER_SIZE;
+        final CRC32 crc = new CRC32();
+        while (offset + 8 <= end) {
+            final int length;
+            final int checksum;
+            final byte[] payload;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE || offset + 8 + length > end) {
+                    break;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(payload, pending, toGallery);
+            offset += 8 + length;
+        }
+        return offset;
+    }
+
+    private void apply(byte[] payload, Map<String, PendingTag> pending, boolean toGallery) throws IOException {
+        final DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        final byte type = record.readByte();
+        final String tagId = record.readUTF();
+        PendingTag tag = pending.get(tagId);
+        if (tag == null) {
+            tag = new PendingTag();
+            pending.put(tagId, tag);
+        }
+        if (type == RECORD_ENROLL) {
+            final String tagName = record.readUTF();
+            final float[] embedding = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                embedding[i] = record.readFloat();
+            }
+            if (tag.name == null) {
+                tag.name = tagName;
+            }
+            tag.added.add(embedding);
+            if (toGallery) {
+                gallery.enroll(tagId, tagName, embedding, 0);
+            }
+        } else if (type == RECORD_REMOVE) {
+            tag.name = null;
+            tag.dropBase = true;
+            tag.added.clear();
+            if (toGallery) {
+                gallery.remove(tagId);
+            }
+        }
+    }
+
+    /**
+     * @param journalEnd bytes of the current journal merged into {@code pending}
+     */
+    private void writeBase(File file, int nextGeneration, long journalEnd, Map<String, PendingTag> pending)
+            throws IOException {
+        final ByteBuffer source;
+        final String[] ids;
+        final String[] names;
+        final int[] start;
+        final int[] count;
+        synchronized (this) {
+            source = baseBytes == null ? null : baseBytes.duplicate();
+            ids = baseIds;
+            names = baseNames;
+            start = baseStart;
+            count = baseCount;
+        }
+
+        final ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+        final DataOutputStream table = new DataOutputStream(tableBytes);
+        final ByteBuffer vector = ByteBuffer.allocate(dimension * 4).order(ByteOrder.LITTLE_ENDIAN);
+        int rows = 0;
+        int tags = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            final FileChannel out = raf.getChannel();
+            out.position(BASE_HEADER_SIZE);
+            for (int t = 0; t < ids.length; t++) {
+                final PendingTag tag = pending.remove(ids[t]);
+                final int kept = tag != null && tag.dropBase ? 0 : count[t];
+                final List<float[]> added = tag == null ? new ArrayList<float[]>() : tag.added;
+                if (kept + added.size() == 0) {
+                    continue;
+                }
+                if (kept > 0) {
+                    source.limit((start[t] + kept) * dimension * 4);
+                    source.position(start[t] * dimension * 4);
+                    while (source.hasRemaining()) {
+                        out.write(source);
+                    }
+                    source.clear();
+                }
+                writeVectors(out, vector, added);
+                table.writeUTF(ids[t]);
+                table.writeUTF(kept > 0 || tag == null || tag.name == null ? names[t] : tag.name);
+                table.writeInt(rows);
+                table.writeInt(kept + added.size());
+                rows += kept + added.size();
+                tags++;
+            }
+            for (Map.Entry<String, PendingTag> entry : pending.entrySet()) {
+                final List<float[]> added = entry.getValue().added;
+                if (added.isEmpty()) {
+                    continue;
+                }
+                writeVectors(out, vector, added);
+                table.writeUTF(entry.getKey());
+                table.writeUTF(entry.getValue().name);
+                table.writeInt(rows);
+                table.writeInt(added.size());
+                rows += added.size();
+                tags++;
+            }
+
+            final long tableOffset = out.position();
+            table.flush();
+            final ByteBuffer tableBuffer = ByteBuffer.wrap(tableBytes.toByteArray());
+            while (tableBuffer.hasRemaining()) {
+                out.write(tableBuffer);
+            }
+            final ByteBuffer header = ByteBuffer.allocate(BASE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(BASE_MAGIC).putInt(VERSION).putInt(dimension).putInt(nextGeneration)
+                    .putInt(rows).putInt(tags).putLong(tableOffset).putLong(journalEnd);
+            header.flip();
+            out.write(header, 0);
+            out.force(true);
+        }
+    }
+
+    private static void writeVectors(FileChannel out, ByteBuffer vector, List<float[]> vectors) throws IOException {
+        for (float[] v : vectors) {
+            vector.clear();
+            vector.asFloatBuffer().put(v);
+            while (vector.hasRemaining()) {
+                out.write(vector);
+            }
+        }
+    }
+
+    private static class PendingTag {
+        String name;
+        boolean dropBase;
+        final List<float[]> added = new ArrayList<>();
+    }
+}
@@ -0,0 +1,570 @@
+package pp.facerecognizer;
+
+import android.content.res.AssetManager;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import pp.facerecognizer.env.Logger;
+
+/**
+ * CPU-only Viola-Jones face detector running on the luma (Y) plane of a camera frame.
+ * <p>
+ * The frame is box-downsampled by {@code downsample} and turned upright, then scanned over an image pyramid with the
+ * boosted Haar cascade using an integral image and a squared integral image for variance
+ * normalization. Overlapping hits are grouped and returned as boxes in frame coordinates.
+ * Cascades are read from the OpenCV XML format (e.g. haarcascade_frontalface_default.xml).
+ */
+class FaceDetector {
+    private static final Logger LOGGER = new Logger();
+
+    private static final float SCALE_FACTOR = 1.25f;
+    private static final float GROUP_EPS = 0.2f;
+    private static final int MIN_NEIGHBORS = 3;
+
+    private final int windowWidth;
+    private final int windowHeight;
+
+    // Stages.
+    private final float[] stageThreshold;
+    private final int[] stageWeakStart;
+    private final int[] stageWeakCount;
+    // Weak classifiers (trees), nodes and leaves.
+    private final int[] weakNodeStart;
+    private final int[] weakLeafStart;
+    private final int[] nodeLeft;
+    private final int[] nodeRight;
+    private final int[] nodeFeature;
+    private final float[] nodeThreshold;
+    private final float[] leaves;
+    // Features, each made of up to three weighted rectangles.
+    private final int[] featureRectStart;
+    private final int[] featureRectCount;
+    private final int[] rectX;
+    private final int[] rectY;
+    private final int[] rectW;
+    private final int[] rectH;
+    private final float[] rectWeight;
+
+    private final int downsample;
+
+    // Working buffers, grown on demand and reused between frames.
+    private int[] base = new int[0];
+    private int[] level = new int[0];
+    private int[] sum = new int[0];
+    private long[] sqsum = new long[0];
+    private final List<float[]> candidates = new ArrayList<>();
+
+    private FaceDetector(Element cascade, int downsample) {
+        this.downsample = Math.max(1, downsample);
+        windowWidth = Integer.parseInt(childText(cascade, "width"));
+        windowHeight = Integer.parseInt(childText(cascade, "height"));
+
+        List<Element> stages = children(child(cascade, "stages"));
+        stageThreshold = new float[stages.size()];
+        stageWeakStart = new int[stages.size()];
+        stageWeakCount = new int[stages.size()];
+
+        List<int[]> nodes = new ArrayList<>();
+        List<Float> thresholds = new ArrayList<>();
+        List<Float> leafList = new ArrayList<>();
+        List<int[]> weakStarts = new ArrayList<>();
+        for (int s = 0; s < stages.size(); s++) {
+            Element stage = stages.get(s);
+            stageThreshold[s] = Float.parseFloat(childText(stage, "stageThreshold"));
+            List<Element> weak = children(child(stage, "weakClassifiers"));
+            stageWeakStart[s] = weakStarts.size();
+            stageWeakCount[s] = weak.size();
+            for (Element w : weak) {
+                weakStarts.add(new int[]{nodes.size(), leafList.size()});
+                String[] n = split(childText(w, "internalNodes"));
+                for (int i = 0; i + 3 < n.length; i += 4) {
+                    nodes.add(new int[]{Integer.parseInt(n[i]), Integer.parseInt(n[i + 1]), Integer.parseInt(n[i + 2])});
+                    thresholds.add(Float.parseFloat(n[i + 3]));
+                }
+                for (String leaf : split(childText(w, "leafValues"))) {
+                    leafList.add(Float.parseFloat(leaf));
+                }
+            }
+        }
+        weakNodeStart = new int[weakStarts.size()];
+        weakLeafStart = new int[weakStarts.size()];
+        for (int i = 0; i < weakStarts.size(); i++) {
+            weakNodeStart[i] = weakStarts.get(i)[0];
+            weakLeafStart[i] = weakStarts.get(i)[1];
+        }
+        nodeLeft = new int[nodes.size()];
+        nodeRight = new int[nodes.size()];
+        nodeFeature = new int[nodes.size()];
+        nodeThreshold = new float[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            nodeLeft[i] = nodes.get(i)[0];
+            nodeRight[i] = nodes.get(i)[1];
+            nodeFeature[i] = nodes.get(i)[2];
+            nodeThreshold[i] = thresholds.get(i);
+        }
+        leaves = new float[leafList.size()];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = leafList.get(i);
+        }
+
+        List<Element> features = children(child(cascade, "features"));
+        featureRectStart = new int[features.size()];
+        featureRectCount = new int[features.size()];
+        List<float[]> rects = new ArrayList<>();
+        for (int f = 0; f < features.size(); f++) {
+            Element feature = features.get(f);
+            if ("1".equals(childTextOrNull(feature, "tilted"))) {
+                throw new IllegalArgumentException("Tilted Haar features are not supported");
+            }
+            List<Element> r = children(child(feature, "rects"));
+            featureRectStart[f] = rects.size();
+            featureRectCount[f] = r.size();
+            for (Element rect : r) {
+                String[] v = split(rect.getTextContent());
+                rects.add(new float[]{Float.parseFloat(v[0]), Float.parseFloat(v[1]),
+                        Float.parseFloat(v[2]), Float.parseFloat(v[3]), Float.parseFloat(v[4])});
+            }
+        }
+        rectX = new int[rects.size()];
+        rectY = new int[rects.size()];
+        rectW = new int[rects.size()];
+        rectH = new int[rects.size()];
+        rectWeight = new float[rects.size()];
+        for (int i = 0; i < rects.size(); i++) {
+            float[] r = rects.get(i);
+            rectX[i] = (int) r[0];
+            rectY[i] = (int) r[1];
+            rectW[i] = (int) r[2];
+            rectH[i] = (int) r[3];
+            rectWeight[i] = r[4];
+        }
+    }
+
+    /**
+     * @return a detector for the cascade stored in {@code input}.
+     */
+    static FaceDetector fromStream(InputStream input, int downsample) throws IOException {
+        try {
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
+            NodeList cascades = document.getElementsByTagName("cascade");
+            if (cascades.getLength() == 0) {
+                throw new IOException("No <cascade> element found");
+            }
+            return new FaceDetector((Element) cascades.item(0), downsample);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Invalid cascade file", e);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return a detector for the asset {@code cascadeFile}, or null when it cannot be loaded.
+     */
+    static FaceDetector fromAsset(AssetManager assetManager, String cascadeFile, int downsample) {
+        if (cascadeFile == null || cascadeFile.length() == 0) {
+            return null;
+        }
+        try {
+            return fromStream(assetManager.open(cascadeFile), downsample);
+        } catch (IOException e) {
+            LOGGER.w("Face cascade %s not available, classifying the center square: %s", cascadeFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Detects faces in a luma plane.
+     *
+     * @param luma     Y plane
+     * @param stride   bytes per row of {@code luma}
+     * @param rotation clockwise degrees that turn the frame upright, the cascade only finds
+     *                 upright faces
+     * @param minFace  smallest face side to report, in frame pixels
+     * @param boxes    receives left, top, right, bottom per face, in frame coordinates
+     * @return the number of faces written to {@code boxes}, largest first
+     */
+    synchronized int detect(byte[] luma, int width, int height, int stride, int rotation, int minFace, float[] boxes) {
+        // Whole quarter turns; the display rotation may have been added on top.
+        final int quarters = ((Math.round(rotation / 90.f) % 4) + 4) % 4;
+        final int frameW = width / downsample;
+        final int frameH = height / downsample;
+        final int baseW = quarters % 2 == 0 ? frameW : frameH;
+        final int baseH = quarters % 2 == 0 ? frameH : frameW;
+        downsampleLuma(luma, stride, frameW, frameH, quarters, baseW, baseH);
+
+        candidates.clear();
+        float scale = Math.max(1.f, (float) minFace / downsample / windowWidth);
+        while (true) {
+            final int levelW = (int) (baseW / scale);
+            final int levelH = (int) (baseH / scale);
+            if (levelW < windowWidth + 1 || levelH < windowHeight + 1) {
+                break;
+            }
+            resizeLevel(baseW, baseH, levelW, levelH);
+            integrate(levelW, levelH);
+            scanLevel(levelW, levelH, scale * downsample, scale > 2.f ? 1 : 2);
+            scale *= SCALE_FACTOR;
+        }
+
+        final int count = groupCandidates(boxes);
+        for (int i = 0; i < count; i++) {
+            toFrame(boxes, i * 4, quarters, frameW * downsample, frameH * downsample);
+        }
+        return count;
+    }
+
+    /**
+     * Box-downsamples the frame into {@link #base}, turned clockwise by {@code quarters} quarter
+     * turns.
+     */
+    private void downsampleLuma(byte[] luma, int stride, int frameW, int frameH, int quarters,
+                                int baseW, int baseH) {
+        if (base.length < baseW * baseH) {
+            base = new int[baseW * baseH];
+        }
+        final int d = downsample;
+        final int area = d * d;
+        for (int y = 0; y < baseH; y++) {
+            for (int x = 0; x < baseW; x++) {
+                // Downsampled frame pixel that ends up at (x, y).
+                final int fx;
+                final int fy;
+                switch (quarters) {
+                    case 1:
+                        fx = y;
+                        fy = frameH - 1 - x;
+                        break;
+                    case 2:
+                        fx = frameW - 1 - x;
+                        fy = frameH - 1 - y;
+                        break;
+                    case 3:
+                        fx = frameW - 1 - y;
+                        fy = x;
+                        break;
+                    default:
+                        fx = x;
+                        fy = y;
+                        break;
+                }
+                int acc = 0;
+                for (int dy = 0; dy < d; dy++) {
+                    int p = (fy * d + dy) * stride + fx * d;
+                    for (int dx = 0; dx < d; dx++) {
+                        acc += luma[p + dx] & 0xFF;
+                    }
+                }
+                base[y * baseW + x] = acc / area;
+            }
+        }
+    }
+
+    /**
+     * Maps box {@code i} of {@code boxes} from the upright image back to the {@code width} x
+     * {@code height} frame it was turned from by {@code quarters} clockwise quarter turns.
+     */
+    private static void toFrame(float[] boxes, int i, int quarters, int width, int height) {
+        final float l = boxes[i];
+        final float t = boxes[i + 1];
+        final float r = boxes[i + 2];
+        final float b = boxes[i + 3];
+        switch (quarters) {
+            case 1:
+                boxes[i] = t;
+                boxes[i + 1] = height - r;
+                boxes[i + 2] = b;
+                boxes[i + 3] = height - l;
+                break;
+            case 2:
+                boxes[i] = width - r;
+                boxes[i + 1] = height - b;
+                boxes[i + 2] = width - l;
+                boxes[i + 3] = height - t;
+                break;
+            case 3:
+                boxes[i] = width - b;
+                boxes[i + 1] = l;
+                boxes[i + 2] = width - t;
+                boxes[i + 3] = r;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void resizeLevel(int baseW, int baseH, int levelW, int levelH) {
+        if (level.length < levelW * levelH) {
+            level = new int[levelW * levelH];
+        }
+        for (int y = 0; y < levelH; y++) {
+            final int sy = y * baseH / levelH;
+            for (int x = 0; x < levelW; x++) {
+                level[y * levelW + x] = base[sy * baseW + x * baseW / levelW];
+            }
+        }
+    }
+
+    private void integrate(int w, int h) {
+        final int w1 = w + 1;
+        final int size = w1 * (h + 1);
+        if (sum.length < size) {
+            sum = new int[size];
+            sqsum = new long[size];
+        }
+        for (int x = 0; x < w1; x++) {
+            sum[x] = 0;
+            sqsum[x] = 0;
+        }
+        for (int y = 0; y < h; y++) {
+            int rowSum = 0;
+            long rowSq = 0;
+            sum[(y + 1) * w1] = 0;
+            sqsum[(y + 1) * w1] = 0;
+            for (int x = 0; x < w; x++) {
+                final int v = level[y * w + x];
+                rowSum += v;
+                rowSq += v * v;
+                final int i = (y + 1) * w1 + x + 1;
+                sum[i] = sum[i - w1] + rowSum;
+                sqsum[i] = sqsum[i - w1] + rowSq;
+            }
+        }
+    }
+
+    private void scanLevel(int w, int h, float toFrame, int step) {
+        final int w1 = w + 1;
+        // Variance is measured on the window shrunk by one pixel, as in OpenCV.
+        final int normW = windowWidth - 2;
+        final int normH = windowHeight - 2;
+        final int normArea = normW * normH;
+        for (int y = 0; y + windowHeight < h; y += step) {
+            for (int x = 0; x + windowWidth < w; x += step) {
+                final int p0 = (y + 1) * w1 + x + 1;
+                final int p1 = p0 + normW;
+                final int p2 = p0 + normH * w1;
+                final int p3 = p2 + normW;
+                final long s = sum[p0] - sum[p1] - sum[p2] + sum[p3];
+                final long sq = sqsum[p0] - sqsum[p1] - sqsum[p2] + sqsum[p3];
+                final double nf2 = (double) normArea * sq - (double) s * s;
+                final float invNorm = nf2 > 0 ? (float) (1.0 / Math.sqrt(nf2)) : 1.f;
+                if (evaluate(y * w1 + x, w1, invNorm)) {
+                    candidates.add(new float[]{x * toFrame, y * toFrame,
+                            windowWidth * toFrame, windowHeight * toFrame});
+                }
+            }
+        }
+    }
+
+    private boolean evaluate(int origin, int w1, float invNorm) {
+        for (int s = 0; s < stageThreshold.length; s++) {
+            float stageSum = 0;
+            final int end = stageWeakStart[s] + stageWeakCount[s];
+            for (int wc = stageWeakStart[s]; wc < end; wc++) {
+                int node = 0;
+                while (true) {
+                    final int n = weakNodeStart[wc] + node;
+                    final float value = featureValue(nodeFeature[n], origin, w1) * invNorm;
+                    final int next = value < nodeThreshold[n] ? nodeLeft[n] : nodeRight[n];
+                    if (next <= 0) {
+                        stageSum += leaves[weakLeafStart[wc] - next];
+                        break;
+                    }
+                    node = next;
+                }
+            }
+            if (stageSum < stageThreshold[s]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private float featureValue(int feature, int origin, int w1) {
+        float value = 0;
+        final int end = featureRectStart[feature] + featureRectCount[feature];
+        for (int r = featureRectStart[feature]; r < end; r++) {
+            final int p0 = origin + rectY[r] * w1 + rectX[r];
+            final int p1 = p0 + rectW[r];
+            final int p2 = p0 + rectH[r] * w1;
+            final int p3 = p2 + rectW[r];
+            value += rectWeight[r] * (sum[p0] - sum[p1] - sum[p2] + sum[p3]);
+        }
+        return value;
+    }
+
+    /**
+     * Clusters similar candidates, averages each cluster with enough members and writes the
+     * results as left, top, right, bottom, largest first.
+     */
+    private int groupCandidates(float[] boxes) {
+        final int n = candidates.size();
+        final int[] label = new int[n];
+        for (int i = 0; i < n; i++) {
+            label[i] = i;
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (similar(candidates.get(i), candidates.get(j))) {
+                    int a = root(label, i);
+                    int b = root(label, j);
+                    if (a != b) {
+                        label[b] = a;
+                    }
+                }
+            }
+        }
+
+        final float[] acc = new float[n * 5];
+        for (int i = 0; i < n; i++) {
+            final int r = root(label, i);
+            final float[] c = candidates.get(i);
+            acc[r * 5] += c[0];
+            acc[r * 5 + 1] += c[1];
+            acc[r * 5 + 2] += c[2];
+            acc[r * 5 + 3] += c[3];
+            acc[r * 5 + 4] += 1;
+        }
+
+        final int maxFaces = boxes.length / 4;
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            final float members = acc[i * 5 + 4];
+            if (members < MIN_NEIGHBORS) {
+                continue;
+            }
+            final float l = acc[i * 5] / members;
+            final float t = acc[i * 5 + 1] / members;
+            final float side = acc[i * 5 + 2] / members;
+            // Insertion by size keeps the largest faces when there are more than fit.
+            int pos = count;
+            while (pos > 0 && boxes[(pos - 1) * 4 + 2] - boxes[(pos - 1) * 4] < side) {
+                if (pos < maxFaces) {
+                    System.arraycopy(boxes, (pos - 1) * 4, boxes, pos * 4, 4);
+                }
+                pos--;
+            }
+            if (pos < maxFaces) {
+                boxes[pos * 4] = l;
+                boxes[pos * 4 + 1] = t;
+                boxes[pos * 4 + 2] = l + side;
+                boxes[pos * 4 + 3] = t + acc[i * 5 + 3] / members;
+                count = Math.min(maxFaces, count + 1);
+            }
+        }
+        return count;
+    }
+
+    private static boolean similar(float[] a, float[] b) {
+        final float delta = GROUP_EPS * (Math.min(a[2], b[2]) + Math.min(a[3], b[3])) * 0.5f;
+        return Math.abs(a[0] - b[0]) <= delta && Math.abs(a[1] - b[1]) <= delta
+                && Math.abs(a[0] + a[2] - b[0] - b[2]) <= delta
+                && Math.abs(a[1] + a[3] - b[1] - b[3]) <= delta;
+    }
+
+    private static int root(int[] label, int i) {
+        while (label[i] != i) {
+            label[i] = label[label[i]];
+            i = label[i];
+        }
+        return i;
+    }
+
+    /**
+     * Runs the detector over labelled upright images and reports recall at IoU 0.5 and the mean
+     * time per image. {@code truth[f]} holds left, top, right, bottom for every face in image
+     * {@code f}.
+     *
+     * @return recall in [0, 1]
+     */
+    static float measureRecall(FaceDetector detector, byte[][] images, int[] widths, int[] heights,
+                               int minFace, float[][] truth) {
+        final float[] boxes = new float[4 * 16];
+        int expected = 0;
+        int found = 0;
+        long totalNs = 0;
+        for (int f = 0; f < images.length; f++) {
+            final long start = System.nanoTime();
+            final int count = detector.detect(images[f], widths[f], heights[f], widths[f], 0, minFace, boxes);
+            totalNs += System.nanoTime() - start;
+            for (int t = 0; t + 3 < truth[f].length; t += 4) {
+                expected++;
+                for (int b = 0; b < count; b++) {
+                    if (iou(truth[f], t, boxes, b * 4) >= 0.5f) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        final float recall = expected == 0 ? 1.f : (float) found / expected;
+        LOGGER.i("Face detector: recall %.3f (%d/%d), %.2fms per image",
+                recall, found, expected, totalNs / 1e6 / Math.max(1, images.length));
+        return recall;
+    }
+
+    /**
+     * @return the intersection over union of box {@code ai} of {@code a} and box {@code bi} of {@code b},
+     * each stored as left, top, right, bottom.
+     */
+    static float iou(float[] a, int ai, float[] b, int bi) {
+        final float iw = Math.min(a[ai + 2], b[bi + 2]) - Math.max(a[ai], b[bi]);
+        final float ih = Math.min(a[ai + 3], b[bi + 3]) - Math.max(a[ai + 1], b[bi + 1]);
+        if (iw <= 0 || ih <= 0) {
+            return 0.f;
+        }
+        final float inter = iw * ih;
+        final float areaA = (a[ai + 2] - a[ai]) * (a[ai + 3] - a[ai + 1]);
+        final float areaB = (b[bi + 2] - b[bi]) * (b[bi + 3] - b[bi + 1]);
+        return inter / (areaA + areaB - inter);
+    }
+
+    private static Element child(Element parent, String name) {
+        for (Element e : children(parent)) {
+            if (e.getTagName().equals(name)) {
+                return e;
+            }
+        }
+        throw new IllegalArgumentException("Missing <" + name + "> in cascade");
+    }
+
+    private static String childText(Element parent, String name) {
+        return child(parent, name).getTextContent().trim();
+    }
+
+    private static String childTextOrNull(Element parent, String name) {
+        for (Element e : children(parent)) {
+            if (e.getTagName().equals(name)) {
+                return e.getTextContent().trim();
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> children(Element parent) {
+        List<Element> result = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                result.add((Element) nodes.item(i));
+            }
+        }
+        return result;
+    }
+
+    private static String[] split(String text) {
+        return text.trim().split("\\s+");
+    }
+}
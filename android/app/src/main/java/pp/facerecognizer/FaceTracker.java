@@ -0,0 +1,269 @@
+package pp.facerecognizer;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries face boxes from frame to frame by template matching on the luma plane.
+ * <p>
+ * Every track keeps a {@link #TEMPLATE_SIZE} x {@link #TEMPLATE_SIZE} luma template sampled from
+ * the box it was last detected at. On each frame the box moves to the offset with the lowest
+ * mean-removed absolute difference, searched coarse to fine around its last position, and the
+ * match quality feeds the track confidence. Fresh detections re-anchor matching tracks. A track
+ * asks to be classified when it is new, when its confidence has decayed, or every
+ * {@code reclassifyInterval} frames, and reports the majority of its last recognitions.
+ */
+class FaceTracker {
+
+    private static final int TEMPLATE_SIZE = 16;
+    private static final float SEARCH_RADIUS = 0.25f; // of the box size
+    private static final float MAX_MEAN_DIFFERENCE = 48.f;
+    private static final float CONFIDENCE_SMOOTHING = 0.5f;
+    private static final float RECLASSIFY_CONFIDENCE = 0.75f;
+    private static final float DROP_CONFIDENCE = 0.4f;
+    private static final float MATCH_IOU = 0.3f;
+
+    static class Track {
+        final int id;
+        final RectF box = new RectF();
+        float confidence = 1.f;
+        private final int[] template = new int[TEMPLATE_SIZE * TEMPLATE_SIZE];
+        private int framesSinceClassified;
+        private boolean classified;
+        private final int[] voteLabels;
+        private final float[] voteScores;
+        private int voteCount;
+        private int nextVote;
+
+        Track(int id, int votes) {
+            this.id = id;
+            this.voteLabels = new int[votes];
+            this.voteScores = new float[votes];
+        }
+
+        /**
+         * Appends the label most of the recent votes agree on, with their mean score, at the
+         * current box.
+         *
+         * @return false if most of the votes were rejected
+         */
+        boolean getRecognition(RecognitionBuffer out) {
+            // The window holds a handful of votes, counting pairwise beats a map.
+            int best = RecognitionBuffer.NO_LABEL;
+            int bestCount = 0;
+            int rejected = 0;
+            for (int i = 0; i < voteCount; i++) {
+                final int label = voteLabels[i];
+                if (label == RecognitionBuffer.NO_LABEL) {
+                    rejected++;
+                    continue;
+                }
+                int count = 0;
+                for (int j = 0; j < voteCount; j++) {
+                    if (voteLabels[j] == label) {
+                        count++;
+                    }
+                }
+                if (count > bestCount) {
+                    bestCount = count;
+                    best = label;
+                }
+            }
+            if (best == RecognitionBuffer.NO_LABEL || rejected > bestCount) {
+                return false;
+            }
+            float confidence = 0;
+            for (int i = 0; i < voteCount; i++) {
+                if (voteLabels[i] == best) {
+                    confidence += voteScores[i];
+                }
+            }
+            out.add(best, confidence / bestCount, box.left, box.top, box.right, box.bottom);
+            return true;
+        }
+    }
+
+    private final int reclassifyInterval;
+    private final int voteWindow;
+    private final List<Track> tracks = new ArrayList<>();
+    private final int[] sample = new int[TEMPLATE_SIZE * TEMPLATE_SIZE];
+    private int nextId;
+
+    /**
+     * @param reclassifyInterval frames after which a track is classified again regardless of its
+     *                           confidence
+     * @param voteWindow         number of recent recognitions a track votes over
+     */
+    FaceTracker(int reclassifyInterval, int voteWindow) {
+        this.reclassifyInterval = reclassifyInterval;
+        this.voteWindow = Math.max(1, voteWindow);
+    }
+
+    synchronized boolean isEmpty() {
+        return tracks.isEmpty();
+    }
+
+    /**
+     * Moves every track to its best match in the new frame and drops the ones that were lost.
+     */
+    synchronized void track(byte[] luma, int width, int height, int stride) {
+        for (int t = tracks.size() - 1; t >= 0; t--) {
+            final Track track = tracks.get(t);
+            final float size = Math.max(track.box.width(), track.box.height());
+            final int radius = Math.max(1, (int) (size * SEARCH_RADIUS));
+            int bestDx = 0;
+            int bestDy = 0;
+            float best = difference(track, luma, width, height, stride, 0, 0, sample);
+            // Coarse grid over the whole search window, then halve the step around the best.
+            int step = Math.max(1, radius / 4);
+            for (int dy = -radius; dy <= radius; dy += step) {
+                for (int dx = -radius; dx <= radius; dx += step) {
+                    final float d = difference(track, luma, width, height, stride, dx, dy, sample);
+                    if (d < best) {
+                        best = d;
+                        bestDx = dx;
+                        bestDy = dy;
+                    }
+                }
+            }
+            for (step /= 2; step >= 1; step /= 2) {
+                final int centerX = bestDx;
+                final int centerY = bestDy;
+                for (int dy = centerY - step; dy <= centerY + step; dy += step) {
+                    for (int dx = centerX - step; dx <= centerX + step; dx += step) {
+                        final float d = difference(track, luma, width, height, stride, dx, dy, sample);
+                        if (d < best) {
+                            best = d;
+                            bestDx = dx;
+                            bestDy = dy;
+                        }
+                    }
+                }
+            }
+            track.box.offset(bestDx, bestDy);
+            final float score = Math.max(0.f, 1.f - best / MAX_MEAN_DIFFERENCE);
+            track.confidence = CONFIDENCE_SMOOTHING * track.confidence + (1.f - CONFIDENCE_SMOOTHING) * score;
+            track.framesSinceClassified++;
+            if (track.confidence < DROP_CONFIDENCE) {
+                tracks.remove(t);
+            }
+        }
+    }
+
+    /**
+     * Re-anchors the tracks that overlap a detection and starts new tracks for the others.
+     * Tracks that no detection confirms are kept, they fade out through their confidence.
+     *
+     * @param boxes {@code left, top, right, bottom} per detection, in frame coordinates
+     */
+    synchronized void addDetections(float[] boxes, int count, byte[] luma, int width, int height, int stride) {
+        final int existing = tracks.size();
+        final boolean[] taken = new boolean[existing];
+        final float[] trackBox = new float[4];
+        for (int i = 0; i < count; i++) {
+            int match = -1;
+            float bestIou = MATCH_IOU;
+            for (int t = 0; t < existing; t++) {
+                final RectF b = tracks.get(t).box;
+                trackBox[0] = b.left;
+                trackBox[1] = b.top;
+                trackBox[2] = b.right;
+                trackBox[3] = b.bottom;
+                final float iou = FaceDetector.iou(boxes, i * 4, trackBox, 0);
+                if (!taken[t] && iou >= bestIou) {
+                    bestIou = iou;
+                    match = t;
+                }
+            }
+            final Track track;
+            if (match >= 0) {
+                taken[match] = true;
+                track = tracks.get(match);
+            } else {
+                track = new Track(nextId++, voteWindow);
+                tracks.add(track);
+            }
+            track.box.set(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+            track.confidence = 1.f;
+            sampleBox(track.box, 0, 0, luma, width, height, stride, track.template);
+        }
+    }
+
+    /**
+     * Fills {@code due} with up to {@code max} tracks that are new, uncertain or due for a
+     * periodic check.
+     */
+    synchronized void needsClassification(List<Track> due, int max) {
+        due.clear();
+        for (int t = 0; t < tracks.size() && due.size() < max; t++) {
+            final Track track = tracks.get(t);
+            if (!track.classified || track.confidence < RECLASSIFY_CONFIDENCE
+                    || track.framesSinceClassified >= reclassifyInterval) {
+                due.add(track);
+            }
+        }
+    }
+
+    /**
+     * Adds a vote to the track, {@link RecognitionBuffer#NO_LABEL} for a face the classifier was
+     * not confident about.
+     */
+    synchronized void addRecognition(Track track, int label, float score) {
+        track.voteLabels[track.nextVote] = label;
+        track.voteScores[track.nextVote] = score;
+        track.nextVote = (track.nextVote + 1) % track.voteLabels.length;
+        track.voteCount = Math.min(track.voteCount + 1, track.voteLabels.length);
+        track.framesSinceClassified = 0;
+        track.classified = true;
+    }
+
+    /**
+     * Replaces the content of {@code out} with the voted recognition of every track that has one.
+     */
+    synchronized void getRecognitions(RecognitionBuffer out) {
+        out.clear();
+        for (int t = 0; t < tracks.size(); t++) {
+            tracks.get(t).getRecognition(out);
+        }
+    }
+
+    /**
+     * Mean absolute difference between the track template and the box moved by (dx, dy), both
+     * with their mean removed so that exposure changes do not count.
+     */
+    private static float difference(Track track, byte[] luma, int width, int height, int stride, int dx, int dy, int[] sample) {
+        sampleBox(track.box, dx, dy, luma, width, height, stride, sample);
+        final int[] template = track.template;
+        long templateSum = 0;
+        long sampleSum = 0;
+        for (int i = 0; i < sample.length; i++) {
+            templateSum += template[i];
+            sampleSum += sample[i];
+        }
+        final int offset = (int) ((sampleSum - templateSum) / sample.length);
+        long sum = 0;
+        for (int i = 0; i < sample.length; i++) {
+            sum += Math.abs(sample[i] - offset - template[i]);
+        }
+        return (float) sum / sample.length;
+    }
+
+    private static void sampleBox(RectF box, int dx, int dy, byte[] luma, int width, int height, int stride, int[] dst) {
+        final float stepX = box.width() / TEMPLATE_SIZE;
+        final float stepY = box.height() / TEMPLATE_SIZE;
+        for (int y = 0; y < TEMPLATE_SIZE; y++) {
+            final int sy = clamp((int) (box.top + dy + (y + 0.5f) * stepY), height - 1);
+            final int row = sy * stride;
+            for (int x = 0; x < TEMPLATE_SIZE; x++) {
+                final int sx = clamp((int) (box.left + dx + (x + 0.5f) * stepX), width - 1);
+                dst[y * TEMPLATE_SIZE + x] = luma[row + sx] & 0xFF;
+            }
+        }
+    }
+
+    private static int clamp(int value, int max) {
+        return value < 0 ? 0 : value > max ? max : value;
+    }
+}
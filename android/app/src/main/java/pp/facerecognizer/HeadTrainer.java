@@ -0,0 +1,205 @@
+package pp.facerecognizer;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Fits a {@link LinearHead} over the enrolled embeddings on a background executor.
+ * <p>
+ * Softmax regression trained with mini-batch SGD and momentum. Once there are enough embeddings a
+ * fifth of them is held out, and training stops when the held-out loss (otherwise the training
+ * loss) has not improved for {@link #PATIENCE} epochs. The best weights seen are kept.
+ */
+class HeadTrainer {
+    private static final Logger LOGGER = new Logger();
+
+    interface Callback {
+        /**
+         * @param head the new head, or null when there are fewer than two tags to tell apart
+         */
+        void onHeadTrained(LinearHead head);
+    }
+
+    private static final int MAX_EPOCHS = 200;
+    private static final int PATIENCE = 10;
+    private static final double MIN_IMPROVEMENT = 1e-4;
+    private static final int BATCH_SIZE = 16;
+    private static final float LEARNING_RATE = 0.5f;
+    private static final float MOMENTUM = 0.9f;
+    private static final float WEIGHT_DECAY = 1e-4f;
+    private static final int MIN_VALIDATION_ROWS = 20;
+    private static final long RANDOM_SEED = 42;
+
+    private final EmbeddingGallery gallery;
+    private final File headFile;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean queued = new AtomicBoolean();
+
+    HeadTrainer(EmbeddingGallery gallery, File headFile) {
+        this.gallery = gallery;
+        this.headFile = headFile;
+    }
+
+    /**
+     * Retrains on the current gallery and saves the head. Requests made while a run is queued
+     * are merged into it, requests made while one is running start another run afterwards.
+     */
+    void schedule(final Callback callback) {
+        if (!queued.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                queued.set(false);
+                final long startTime = SystemClock.uptimeMillis();
+                final LinearHead head = train(gallery);
+                try {
+                    if (head != null) {
+                        head.save(headFile);
+                    } else {
+                        headFile.delete();
+                    }
+                } catch (IOException e) {
+                    LOGGER.e(e, "Could not save the trained head");
+                }
+                LOGGER.i("Head training took %dms", SystemClock.uptimeMillis() - startTime);
+                callback.onHeadTrained(head);
+            }
+        });
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the trained head, or null if the gallery holds fewer than two tags
+     */
+    static LinearHead train(EmbeddingGallery gallery) {
+        final int d = gallery.getDimension();
+        final int rows;
+        final float[] x;
+        final int[] y;
+        final List<String> ids = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        synchronized (gallery) {
+            rows = gallery.size();
+            x = new float[rows * d];
+            final int[] rowTag = new int[rows];
+            gallery.copyRows(x, rowTag);
+            final Map<Integer, Integer> classOf = new HashMap<>();
+            y = new int[rows];
+            for (int r = 0; r < rows; r++) {
+                Integer c = classOf.get(rowTag[r]);
+                if (c == null) {
+                    c = ids.size();
+                    classOf.put(rowTag[r], c);
+                    ids.add(gallery.getTagId(rowTag[r]));
+                    names.add(gallery.getTagName(rowTag[r]));
+                }
+                y[r] = c;
+            }
+        }
+        final int classes = ids.size();
+        if (classes < 2) {
+            return null;
+        }
+
+        final Random random = new Random(RANDOM_SEED);
+        final int[] order = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            order[r] = r;
+        }
+        shuffle(order, random);
+        final int validation = rows >= MIN_VALIDATION_ROWS ? rows / 5 : 0;
+        final int[] validationRows = Arrays.copyOfRange(order, 0, validation);
+        final int[] trainRows = Arrays.copyOfRange(order, validation, rows);
+        final int[] lossRows = validation > 0 ? validationRows : trainRows;
+
+        final float[] w = new float[classes * d];
+        final float[] b = new float[classes];
+        final float[] vw = new float[w.length];
+        final float[] vb = new float[b.length];
+        final float[] gw = new float[w.length];
+        final float[] gb = new float[b.length];
+        final float[] p = new float[classes];
+        final float[] bestW = new float[w.length];
+        final float[] bestB = new float[b.length];
+        double bestLoss = Double.MAX_VALUE;
+        int stale = 0;
+        int epoch = 0;
+
+        for (; epoch < MAX_EPOCHS && stale < PATIENCE; epoch++) {
+            shuffle(trainRows, random);
+            for (int start = 0; start < trainRows.length; start += BATCH_SIZE) {
+                final int end = Math.min(start + BATCH_SIZE, trainRows.length);
+                Arrays.fill(gw, 0.f);
+                Arrays.fill(gb, 0.f);
+                for (int i = start; i < end; i++) {
+                    final int r = trainRows[i];
+                    LinearHead.softmax(w, b, d, x, r * d, p, 0);
+                    p[y[r]] -= 1.f;
+                    for (int c = 0, row = 0; c < classes; c++, row += d) {
+                        gb[c] += p[c];
+                        for (int k = 0; k < d; k++) {
+                            gw[row + k] += p[c] * x[r * d + k];
+                        }
+                    }
+                }
+                final float scale = 1.f / (end - start);
+                for (int j = 0; j < w.length; j++) {
+                    vw[j] = MOMENTUM * vw[j] - LEARNING_RATE * (gw[j] * scale + WEIGHT_DECAY * w[j]);
+                    w[j] += vw[j];
+                }
+                for (int c = 0; c < classes; c++) {
+                    vb[c] = MOMENTUM * vb[c] - LEARNING_RATE * gb[c] * scale;
+                    b[c] += vb[c];
+                }
+            }
+
+            final double loss = meanLoss(w, b, d, x, y, lossRows, p);
+            if (loss < bestLoss - MIN_IMPROVEMENT) {
+                bestLoss = loss;
+                System.arraycopy(w, 0, bestW, 0, w.length);
+                System.arraycopy(b, 0, bestB, 0, b.length);
+                stale = 0;
+            } else {
+                stale++;
+            }
+        }
+        LOGGER.i("Trained head: %d classes, %d embeddings (%d held out), %d epochs, loss %.4f",
+                classes, rows, validation, epoch, bestLoss);
+        return new LinearHead(d, ids.toArray(new String[classes]), names.toArray(new String[classes]), bestW, bestB);
+    }
+
+    private static double meanLoss(float[] w, float[] b, int d, float[] x, int[] y, int[] rows, float[] p) {
+        double loss = 0;
+        for (int r : rows) {
+            LinearHead.softmax(w, b, d, x, r * d, p, 0);
+            loss -= Math.log(Math.max(p[y[r]], 1e-7f));
+        }
+        return loss / Math.max(1, rows.length);
+    }
+
+    private static void shuffle(int[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+    }
+}
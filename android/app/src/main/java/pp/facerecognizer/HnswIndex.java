@@ -0,0 +1,519 @@
+package pp.facerecognizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Hierarchical navigable small world graph for approximate cosine nearest-neighbour search.
+ * <p>
+ * Vectors are L2-normalized on insert, so the distance is {@code 1 - dot}. Every node carries an
+ * integer label (the gallery tag ordinal). Deletes are tombstones: deleted nodes still route
+ * searches but are never returned, and the graph is rebuilt once they outnumber live nodes.
+ * {@code m}, {@code efConstruction} and {@code efSearch} trade build time and memory for recall.
+ */
+class HnswIndex {
+    private static final Logger LOGGER = new Logger();
+
+    private final int dimension;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private int efSearch;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+
+    private float[] vectors;
+    private int[] labels;
+    private boolean[] deleted;
+    // links.get(node)[level] = {count, neighbour...}
+    private final List<int[][]> links = new ArrayList<>();
+    private int size;
+    private int deletedCount;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // Search scratch space, reused between calls.
+    private int[] visited = new int[0];
+    private int visitMark;
+    private final NodeHeap candidates = new NodeHeap();
+    private final NodeHeap results = new NodeHeap();
+
+    HnswIndex(int dimension, int m, int efConstruction, int efSearch) {
+        this.dimension = dimension;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.vectors = new float[64 * dimension];
+        this.labels = new int[64];
+        this.deleted = new boolean[64];
+    }
+
+    synchronized void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    synchronized int size() {
+        return size - deletedCount;
+    }
+
+    /**
+     * Inserts the vector at {@code src[offset .. offset + dimension)}.
+     *
+     * @return the node id
+     */
+    synchronized int insert(int label, float[] src, int offset) {
+        final int node = size;
+        ensureCapacity(node + 1);
+        EmbeddingGallery.normalize(src, offset, vectors, node * dimension, dimension);
+        labels[node] = label;
+        deleted[node] = false;
+        size++;
+
+        final int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+        final int[][] nodeLinks = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            nodeLinks[l] = new int[(l == 0 ? maxM0 : m) + 1];
+        }
+        links.add(nodeLinks);
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return node;
+        }
+
+        final float[] q = vectors;
+        final int qOffset = node * dimension;
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(q, qOffset, current, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            searchLayer(q, qOffset, current, efConstruction, l);
+            final int[] found = results.drainSortedNodes();
+            final int maxLinks = l == 0 ? maxM0 : m;
+            final int[] selected = selectNeighbours(found, m);
+            for (int s = 1; s <= selected[0]; s++) {
+                addLink(node, selected[s], l, maxLinks);
+                addLink(selected[s], node, l, maxLinks);
+            }
+            current = found[0];
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+        return node;
+    }
+
+    /**
+     * Marks every node with the label as deleted.
+     */
+    synchronized void removeLabel(int label) {
+        for (int n = 0; n < size; n++) {
+            if (labels[n] == label && !deleted[n]) {
+                deleted[n] = true;
+                deletedCount++;
+            }
+        }
+        if (deletedCount > size - deletedCount) {
+            rebuild();
+        }
+    }
+
+    /**
+     * @param score receives the cosine similarity of the match in {@code score[0]}
+     * @return the label of the approximate nearest live node, or -1 if there is none
+     */
+    synchronized int nearest(float[] query, int offset, float[] score) {
+        if (entryPoint < 0 || size == deletedCount) {
+            return -1;
+        }
+        final float[] q = new float[dimension];
+        EmbeddingGallery.normalize(query, offset, q, 0, dimension);
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            current = greedyClosest(q, 0, current, l);
+        }
+        searchLayer(q, 0, current, Math.max(efSearch, 1), 0);
+        final int[] found = results.drainSortedNodes();
+        for (int i = 0; i < found.length; i++) {
+            if (!deleted[found[i]]) {
+                score[0] = 1.f - distance(q, 0, found[i]);
+                return labels[found[i]];
+            }
+        }
+        return -1;
+    }
+
+    private void rebuild() {
+        final int oldSize = size;
+        final float[] oldVectors = vectors;
+        final int[] oldLabels = labels;
+        final boolean[] oldDeleted = deleted;
+        vectors = new float[Math.max(64, oldSize - deletedCount) * dimension];
+        labels = new int[Math.max(64, oldSize - deletedCount)];
+        deleted = new boolean[labels.length];
+        links.clear();
+        size = 0;
+        deletedCount = 0;
+        entryPoint = -1;
+        maxLevel = -1;
+        for (int n = 0; n < oldSize; n++) {
+            if (!oldDeleted[n]) {
+                insert(oldLabels[n], oldVectors, n * dimension);
+            }
+        }
+    }
+
+    private int greedyClosest(float[] q, int qOffset, int start, int level) {
+        int current = start;
+        float currentDistance = distance(q, qOffset, current);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            final int[] neighbours = links.get(current)[level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                final float d = distance(q, qOffset, neighbours[i]);
+                if (d < currentDistance) {
+                    currentDistance = d;
+                    current = neighbours[i];
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of one layer, leaving up to {@code ef} closest nodes in {@link #results}.
+     */
+    private void searchLayer(float[] q, int qOffset, int start, int ef, int level) {
+        if (visited.length < size) {
+            visited = new int[Math.max(size, visited.length * 2)];
+            visitMark = 0;
+        }
+        if (++visitMark == Integer.MAX_VALUE) {
+            java.util.Arrays.fill(visited, 0);
+            visitMark = 1;
+        }
+        candidates.clear(false);
+        results.clear(true);
+
+        final float startDistance = distance(q, qOffset, start);
+        visited[start] = visitMark;
+        candidates.push(start, startDistance);
+        results.push(start, startDistance);
+
+        while (candidates.size() > 0) {
+            final float d = candidates.topDistance();
+            final int c = candidates.pop();
+            if (d > results.topDistance() && results.size() >= ef) {
+                break;
+            }
+            final int[][] nodeLinks = links.get(c);
+            if (level >= nodeLinks.length) {
+                continue;
+            }
+            final int[] neighbours = nodeLinks[level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                final int n = neighbours[i];
+                if (visited[n] == visitMark) {
+                    continue;
+                }
+                visited[n] = visitMark;
+                final float nd = distance(q, qOffset, n);
+                if (results.size() < ef || nd < results.topDistance()) {
+                    candidates.push(n, nd);
+                    results.push(n, nd);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Neighbour selection heuristic: a candidate is kept only if it is closer to the new node than
+     * to every neighbour kept so far, which favours links in diverse directions.
+     *
+     * @param sorted candidates by increasing distance
+     * @return {count, node...}
+     */
+    private int[] selectNeighbours(int[] sorted, int max) {
+        final int[] selected = new int[max + 1];
+        for (int i = 0; i < sorted.length && selected[0] < max; i++) {
+            final int c = sorted[i];
+            final float dq = results.distanceOf(i);
+            boolean keep = true;
+            for (int s = 1; s <= selected[0]; s++) {
+                if (distance(vectors, c * dimension, selected[s]) < dq) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[++selected[0]] = c;
+            }
+        }
+        return selected;
+    }
+
+    private void addLink(int from, int to, int level, int maxLinks) {
+        final int[] neighbours = links.get(from)[level];
+        if (neighbours[0] < maxLinks) {
+            neighbours[++neighbours[0]] = to;
+            return;
+        }
+        // Full: replace the farthest neighbour if the new one is closer.
+        int farthest = -1;
+        float farthestDistance = distance(vectors, from * dimension, to);
+        for (int i = 1; i <= neighbours[0]; i++) {
+            final float d = distance(vectors, from * dimension, neighbours[i]);
+            if (d > farthestDistance) {
+                farthestDistance = d;
+                farthest = i;
+            }
+        }
+        if (farthest > 0) {
+            neighbours[farthest] = to;
+        }
+    }
+
+    private float distance(float[] q, int qOffset, int node) {
+        final float[] v = vectors;
+        final int base = node * dimension;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimension; i += 4) {
+            s0 += q[qOffset + i] * v[base + i];
+            s1 += q[qOffset + i + 1] * v[base + i + 1];
+            s2 += q[qOffset + i + 2] * v[base + i + 2];
+            s3 += q[qOffset + i + 3] * v[base + i + 3];
+        }
+        for (; i < dimension; i++) {
+            s0 += q[qOffset + i] * v[base + i];
+        }
+        return 1.f - ((s0 + s1) + (s2 + s3));
+    }
+
+    private void ensureCapacity(int nodes) {
+        if (nodes <= labels.length) {
+            return;
+        }
+        final int capacity = Math.max(nodes, labels.length * 2);
+        final float[] grownVectors = new float[capacity * dimension];
+        System.arraycopy(vectors, 0, grownVectors, 0, size * dimension);
+        vectors = grownVectors;
+        final int[] grownLabels = new int[capacity];
+        System.arraycopy(labels, 0, grownLabels, 0, size);
+        labels = grownLabels;
+        final boolean[] grownDeleted = new boolean[capacity];
+        System.arraycopy(deleted, 0, grownDeleted, 0, size);
+        deleted = grownDeleted;
+    }
+
+    /**
+     * Binary heap of (distance, node) pairs on primitive arrays, min- or max-ordered by distance.
+     */
+    private static class NodeHeap {
+        private int[] nodes = new int[64];
+        private float[] distances = new float[64];
+        private int count;
+        private boolean max;
+        // Filled by drainSortedNodes.
+        private float[] sortedDistances = new float[0];
+
+        void clear(boolean max) {
+            this.max = max;
+            count = 0;
+        }
+
+        int size() {
+            return count;
+        }
+
+        float topDistance() {
+            return distances[0];
+        }
+
+        void push(int node, float distance) {
+            if (count == nodes.length) {
+                nodes = java.util.Arrays.copyOf(nodes, count * 2);
+                distances = java.util.Arrays.copyOf(distances, count * 2);
+            }
+            int i = count++;
+            while (i > 0) {
+                final int parent = (i - 1) / 2;
+                if (!before(distance, distances[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+        }
+
+        int pop() {
+            final int top = nodes[0];
+            final int lastNode = nodes[--count];
+            final float lastDistance = distances[count];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= count) {
+                    break;
+                }
+                if (child + 1 < count && before(distances[child + 1], distances[child])) {
+                    child++;
+                }
+                if (!before(distances[child], lastDistance)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            nodes[i] = lastNode;
+            distances[i] = lastDistance;
+            return top;
+        }
+
+        /**
+         * Empties a max-heap into an array of nodes sorted by increasing distance.
+         */
+        int[] drainSortedNodes() {
+            final int n = count;
+            final int[] sorted = new int[n];
+            if (sortedDistances.length < n) {
+                sortedDistances = new float[n];
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                sortedDistances[i] = distances[0];
+                sorted[i] = pop();
+            }
+            return sorted;
+        }
+
+        float distanceOf(int sortedIndex) {
+            return sortedDistances[sortedIndex];
+        }
+
+        private boolean before(float a, float b) {
+            return max ? a > b : a < b;
+        }
+    }
+
+    /**
+     * Compares the index against a brute-force cosine scan on random clustered vectors and logs
+     * recall@1 and the mean query latency for every gallery size. Sizes whose vectors and links
+     * would take more than half of the heap still free are skipped.
+     *
+     * @return the report, one line per size
+     */
+    static String benchmark(int dimension, int[] sizes, int queries, int m, int efConstruction, int efSearch) {
+        final StringBuilder report = new StringBuilder();
+        final Random random = new Random(7);
+        for (int size : sizes) {
+            final Runtime runtime = Runtime.getRuntime();
+            final long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+            // The data, the index's copy grown by doubling and the bottom layer links.
+            final long needed = 3L * size * dimension * 4 + 2L * size * 2 * m * 4;
+            if (needed > free / 2) {
+                final String line = String.format(Locale.US, "n=%d dim=%d: skipped, needs %dMB of %dMB free",
+                        size, dimension, needed >> 20, free >> 20);
+                LOGGER.i(line);
+                report.append(line).append('\n');
+                continue;
+            }
+            final int identities = Math.max(1, size / 10);
+            final float[] centers = gaussian(random, identities * dimension, 1.f);
+            final float[] data = new float[size * dimension];
+            final int[] dataLabels = new int[size];
+            final HnswIndex index = new HnswIndex(dimension, m, efConstruction, efSearch);
+            for (int i = 0; i < size; i++) {
+                dataLabels[i] = random.nextInt(identities);
+                for (int d = 0; d < dimension; d++) {
+                    data[i * dimension + d] = centers[dataLabels[i] * dimension + d] + (float) random.nextGaussian() * 0.3f;
+                }
+            }
+
+            final float[] query = new float[queries * dimension];
+            for (int i = 0; i < queries; i++) {
+                final int source = random.nextInt(size);
+                for (int d = 0; d < dimension; d++) {
+                    query[i * dimension + d] = data[source * dimension + d] + (float) random.nextGaussian() * 0.3f;
+                }
+            }
+
+            for (int i = 0; i < size; i++) {
+                // Normalized in place, so the exact scan below is a plain dot product.
+                EmbeddingGallery.normalize(data, i * dimension, data, i * dimension, dimension);
+                index.insert(i, data, i * dimension);
+            }
+
+            final float[] score = new float[1];
+            final int[] truth = new int[queries];
+            final float[] q = new float[dimension];
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                EmbeddingGallery.normalize(query, i * dimension, q, 0, dimension);
+                truth[i] = scan(data, size, q);
+            }
+            final double exactMs = (System.nanoTime() - start) / 1e6 / queries;
+
+            int hits = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                if (index.nearest(query, i * dimension, score) == truth[i]) {
+                    hits++;
+                }
+            }
+            final double annMs = (System.nanoTime() - start) / 1e6 / queries;
+
+            final String line = String.format(Locale.US,
+                    "n=%d dim=%d M=%d efC=%d ef=%d: recall@1=%.3f hnsw=%.3fms exact=%.3fms",
+                    size, dimension, m, efConstruction, efSearch, (float) hits / queries, annMs, exactMs);
+            LOGGER.i(line);
+            report.append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return the row of {@code data} with the largest dot product with {@code q}
+     */
+    private static int scan(float[] data, int rows, float[] q) {
+        final int dimension = q.length;
+        int best = -1;
+        float bestDot = Float.NEGATIVE_INFINITY;
+        for (int r = 0; r < rows; r++) {
+            float dot = 0.f;
+            for (int d = 0; d < dimension; d++) {
+                dot += data[r * dimension + d] * q[d];
+            }
+            if (dot > bestDot) {
+                bestDot = dot;
+                best = r;
+            }
+        }
+        return best;
+    }
+
+    private static float[] gaussian(Random random, int length, float sigma) {
+        final float[] values = new float[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = (float) random.nextGaussian() * sigma;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,177 @@
+package pp.facerecognizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Softmax classifier applied on top of the frozen embedding layer.
+ * <p>
+ * Every class is a tag; the logits are {@code weights * e + bias} for the L2-normalized
+ * embedding {@code e}, so the head is trained on the same vectors the gallery stores.
+ */
+class LinearHead {
+
+    private static final int MAGIC = 0x48454144; // "HEAD"
+    private static final int VERSION = 1;
+
+    private final int dimension;
+    private final String[] tagIds;
+    private final String[] tagNames;
+    // Row-major, one row of dimension weights per class.
+    private final float[] weights;
+    private final float[] bias;
+    private final int[] labels;
+
+    LinearHead(int dimension, String[] tagIds, String[] tagNames, float[] weights, float[] bias) {
+        this.dimension = dimension;
+        this.tagIds = tagIds;
+        this.tagNames = tagNames;
+        this.weights = weights;
+        this.bias = bias;
+        this.labels = new int[tagIds.length];
+        for (int c = 0; c < labels.length; c++) {
+            labels[c] = RecognitionBuffer.intern(tagIds[c], tagNames[c]);
+        }
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    int getClassCount() {
+        return bias.length;
+    }
+
+    String getTagId(int index) {
+        return tagIds[index];
+    }
+
+    String getTagName(int index) {
+        return tagNames[index];
+    }
+
+    /**
+     * @return the interned {@link RecognitionBuffer} label of a class
+     */
+    int getLabel(int index) {
+        if (!RecognitionBuffer.isInterned(labels[index])) {
+            labels[index] = RecognitionBuffer.intern(tagIds[index], tagNames[index]);
+        }
+        return labels[index];
+    }
+
+    /**
+     * @param probabilities receives {@link #getClassCount()} class probabilities
+     * @return the most probable class
+     */
+    int classify(float[] embedding, int offset, float[] probabilities) {
+        return classify(embedding, offset, probabilities, 0);
+    }
+
+    /**
+     * Like {@link #classify(float[], int, float[])}, writing the probabilities from
+     * {@code probabilities[pOffset]} on.
+     */
+    int classify(float[] embedding, int offset, float[] probabilities, int pOffset) {
+        final float[] normalized = new float[dimension];
+        EmbeddingGallery.normalize(embedding, offset, normalized, 0, dimension);
+        return softmax(weights, bias, dimension, normalized, 0, probabilities, pOffset);
+    }
+
+    /**
+     * Writes the class probabilities of {@code x[offset .. offset + dimension)} to
+     * {@code p[pOffset ..]}.
+     *
+     * @return the most probable class
+     */
+    static int softmax(float[] weights, float[] bias, int dimension, float[] x, int offset, float[] p, int pOffset) {
+        final int classes = bias.length;
+        int best = 0;
+        for (int c = 0, row = 0; c < classes; c++, row += dimension) {
+            float logit = bias[c];
+            for (int i = 0; i < dimension; i++) {
+                logit += weights[row + i] * x[offset + i];
+            }
+            p[pOffset + c] = logit;
+            if (logit > p[pOffset + best]) {
+                best = c;
+            }
+        }
+        final float max = p[pOffset + best];
+        float sum = 0;
+        for (int c = 0; c < classes; c++) {
+            p[pOffset + c] = (float) Math.exp(p[pOffset + c] - max);
+            sum += p[pOffset + c];
+        }
+        for (int c = 0; c < classes; c++) {
+            p[pOffset + c] /= sum;
+        }
+        return best;
+    }
+
+    /**
+     * Writes the head next to {@code file} and renames it into place.
+     */
+    void save(File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimension);
+            out.writeInt(bias.length);
+            for (int c = 0; c < bias.length; c++) {
+                out.writeUTF(tagIds[c]);
+                out.writeUTF(tagNames[c] == null ? "" : tagNames[c]);
+            }
+            for (float w : weights) {
+                out.writeFloat(w);
+            }
+            for (float b : bias) {
+                out.writeFloat(b);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * @return the saved head, or null if there is none
+     */
+    static LinearHead load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a head file: " + file);
+            }
+            final int dimension = in.readInt();
+            final int classes = in.readInt();
+            if (dimension <= 0 || classes < 0 || (long) classes * (dimension + 1) * 4 > file.length()) {
+                throw new IOException("Corrupt head file: " + file);
+            }
+            final String[] ids = new String[classes];
+            final String[] names = new String[classes];
+            for (int c = 0; c < classes; c++) {
+                ids[c] = in.readUTF();
+                names[c] = in.readUTF();
+            }
+            final float[] weights = new float[classes * dimension];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = in.readFloat();
+            }
+            final float[] bias = new float[classes];
+            for (int c = 0; c < classes; c++) {
+                bias[c] = in.readFloat();
+            }
+            return new LinearHead(dimension, ids, names, weights, bias);
+        }
+    }
+}
@@ -23,11 +23,15 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.RectF;
 
 import junit.framework.Assert;
 
-import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+import org.tensorflow.DataType;
+import org.tensorflow.Operation;
+import org.tensorflow.Shape;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -35,9 +39,24 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pp.facerecognizer.env.Benchmark;
+import pp.facerecognizer.env.Logger;
+import pp.facerecognizer.env.PerceptualHash;
+import pp.facerecognizer.env.Resampler;
 
 public class MSCognitiveServicesClassifier {
+    private static final Logger LOGGER = new Logger();
 
     private final static String DEFAULT_MODEL_FILE = "file:///android_asset/model.pb";
     private final static String DEFAULT_LABEL_FILE = "file:///android_asset/labels.txt";
@@ -45,29 +64,94 @@ public class MSCognitiveServicesClassifier {
     private static String modelFile = DEFAULT_MODEL_FILE;
     private static String labelFile = DEFAULT_LABEL_FILE;
 
-    private TensorFlowInferenceInterface inferenceInterface;
+    // Results survive classifier re-creation and are dropped when the model or labels change.
+    // Exact hashes only: crops of two people in similar framing can differ in a bit or two.
+    private static final RecognitionCache resultCache = new RecognitionCache(64, 0, 5000);
+    private static final AtomicInteger modelGeneration = new AtomicInteger();
+
+    private TensorFlowSession inferenceInterface;
     private Vector<String> labels = new Vector<>();
+    // Interned RecognitionBuffer label of every class.
+    private int[] classLabels = new int[0];
     private int numberOfClasses = 0;
     private boolean hasNormalizationLayer = false;
-
-    private static final int INPUT_SIZE = 227;
+    private boolean useResultCache = true;
+
+    // Quantized exports take packed uint8 BGR pixels and may emit uint8 scores.
+    private boolean quantizedInput = false;
+    private boolean quantizedOutput = false;
+    private float outputMin = 0.f;
+    private float outputScale = 1.f / 255.f;
+
+    // Buffers reused for every frame, the input and output ones hold up to MAX_BATCH entries.
+    private final Resampler resampler = new Resampler();
+    private final int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
+    // Pixels of the last source bitmap, read again only when the bitmap changes.
+    private int[] sourcePixels = new int[0];
+    private Bitmap pixelsSource;
+    private int pixelsGeneration;
+    private final String[] outputNames = new String[]{OUTPUT_NAME};
+    // The input tensor is staged in direct memory, one normalized row at a time.
+    private FloatBuffer floatValues;
+    private final float[] rowFloats = new float[INPUT_SIZE * 3];
+    private final byte[] rowBytes = new byte[INPUT_SIZE * 3];
+    private float[] outputs;
+    private ByteBuffer byteValues;
+    private ByteBuffer byteOutputs;
+
+    private String embeddingName;
+    private int embeddingSize;
+    private volatile LinearHead head;
+
+    // Scores of the last run, scoreCount per batch entry, and the entry each batch slot was for.
+    private float[] lastScores;
+    private int scoreCount;
+    private LinearHead scoredHead;
+    private final int[] scoredEntries = new int[MAX_BATCH];
+    private int scoredBatch;
+    private float[] headScores = new float[0];
+    private final int[] topIndex = new int[1];
+    private final float[] topScore = new float[1];
+    private final long[] hashes = new long[MAX_BATCH];
+    private final int[] batchToFace = new int[MAX_BATCH];
+
+    static final int INPUT_SIZE = 227;
     private static final int RESIZE_SIZE = 256;
+    static final int MAX_BATCH = 8;
+    // Detected face boxes are tight around eyes and mouth, the crop adds forehead and chin.
+    private static final float FACE_CROP_SCALE = 1.4f;
     private static final String INPUT_NAME = "Placeholder";
     private static final String OUTPUT_NAME = "loss";
     private static final String DATA_NORM_LAYER_PREFIX = "data_bn";
+    private static final String OUTPUT_MIN_SUFFIX = "/min";
+    private static final String OUTPUT_MAX_SUFFIX = "/max";
+    // The penultimate layer of the exported networks is a global pooling over the last feature map.
+    private static final List<String> EMBEDDING_OP_TYPES = Arrays.asList("AvgPool", "Mean");
 
     static {
         System.loadLibrary("tensorflow_inference");
     }
 
     public static void setLabelFile(String label) {
+        if (!label.equals(labelFile)) {
+            modelGeneration.incrementAndGet();
+            RecognitionBuffer.clearLabels();
+        }
         labelFile = label;
     }
 
     public static void setModelFile(String model) {
+        if (!model.equals(modelFile)) {
+            modelGeneration.incrementAndGet();
+            RecognitionBuffer.clearLabels();
+        }
         modelFile = model;
     }
 
+    public static String getCacheStats() {
+        return resultCache.getStats();
+    }
+
     public static boolean checkModel(AssetManager manager) {
         boolean noModel;
         boolean isAsset = modelFile.startsWith(ASSET_PREFIX);
@@ -107,7 +191,20 @@ public class MSCognitiveServicesClassifier {
     }
 
     MSCognitiveServicesClassifier(final Context context) {
-        inferenceInterface = new TensorFlowInferenceInterface(context.getAssets(), modelFile);
+        this(context, ThreadingProfile.DEFAULT);
+    }
+
+    MSCognitiveServicesClassifier(final Context context, final ThreadingProfile threadingProfile) {
+        this(context, threadingProfile, null);
+    }
+
+    /**
+     * @param embeddingLayer name of the penultimate layer used as face embedding, or null to use
+     *                       the last global pooling operation of the graph.
+     */
+    MSCognitiveServicesClassifier(final Context context, final ThreadingProfile threadingProfile, final String embeddingLayer) {
+        inferenceInterface = new TensorFlowSession(context.getAssets(), modelFile, threadingProfile);
+        embeddingName = findEmbeddingLayer(embeddingLayer);
 
         // Look to see if this graph has a data normalization layer, if so we don't need to do
         // mean subtraction on the image.
@@ -121,6 +218,78 @@ public class MSCognitiveServicesClassifier {
         }
 
         loadLabels(context);
+
+        // Quantized graphs are detected from the placeholder and output types, the buffers
+        // are allocated once and reused for every frame.
+        Operation inputOp = inferenceInterface.graph().operation(INPUT_NAME);
+        Operation outputOp = inferenceInterface.graph().operation(OUTPUT_NAME);
+        quantizedInput = inputOp != null && inputOp.output(0).dataType() == DataType.UINT8;
+        quantizedOutput = outputOp != null && outputOp.output(0).dataType() == DataType.UINT8;
+        if (quantizedInput) {
+            byteValues = ByteBuffer.allocateDirect(MAX_BATCH * INPUT_SIZE * INPUT_SIZE * 3).order(ByteOrder.nativeOrder());
+        } else {
+            floatValues = ByteBuffer.allocateDirect(MAX_BATCH * INPUT_SIZE * INPUT_SIZE * 3 * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        outputs = new float[MAX_BATCH * numberOfClasses];
+        if (quantizedOutput) {
+            byteOutputs = ByteBuffer.allocateDirect(MAX_BATCH * numberOfClasses).order(ByteOrder.nativeOrder());
+            loadQuantizationParams();
+        }
+        if (embeddingName != null) {
+            embeddingSize = probeEmbeddingSize();
+        }
+    }
+
+    /**
+     * Reads the embedding size from the graph, or from one run on a blank input if the shape of
+     * the embedding layer is not fully defined.
+     */
+    private int probeEmbeddingSize() {
+        final Shape shape = inferenceInterface.graph().operation(embeddingName).output(0).shape();
+        int size = shape.numDimensions() > 1 ? 1 : -1;
+        for (int i = 1; i < shape.numDimensions() && size > 0; i++) {
+            size = shape.size(i) > 0 ? size * (int) shape.size(i) : -1;
+        }
+        if (size > 0) {
+            return size;
+        }
+        return runEmbedding(1).length;
+    }
+
+    private String findEmbeddingLayer(String embeddingLayer) {
+        if (embeddingLayer != null && embeddingLayer.length() > 0) {
+            return inferenceInterface.graph().operation(embeddingLayer) != null ? embeddingLayer : null;
+        }
+        String last = null;
+        java.util.Iterator<org.tensorflow.Operation> opIter = inferenceInterface.graph().operations();
+        while (opIter.hasNext()) {
+            org.tensorflow.Operation op = opIter.next();
+            if (EMBEDDING_OP_TYPES.contains(op.type())) {
+                last = op.name();
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Reads the output range stored next to the output node ("loss/min" and "loss/max").
+     * If the model does not carry them the scores are mapped to [0, 1].
+     */
+    private void loadQuantizationParams() {
+        String minName = OUTPUT_NAME + OUTPUT_MIN_SUFFIX;
+        String maxName = OUTPUT_NAME + OUTPUT_MAX_SUFFIX;
+        if (inferenceInterface.graph().operation(minName) == null
+                || inferenceInterface.graph().operation(maxName) == null) {
+            return;
+        }
+        float[] min = new float[1];
+        float[] max = new float[1];
+        inferenceInterface.run(new String[]{minName, maxName});
+        inferenceInterface.fetch(minName, min);
+        inferenceInterface.fetch(maxName, max);
+        outputMin = min[0];
+        outputScale = (max[0] - min[0]) / 255.f;
     }
 
     private void loadLabels(final Context context) {
@@ -143,23 +312,402 @@ public class MSCognitiveServicesClassifier {
             br.close();
 
             numberOfClasses = labels.size();
+            classLabels = new int[numberOfClasses];
+            for (int c = 0; c < numberOfClasses; c++) {
+                classLabels[c] = RecognitionBuffer.intern("0", labels.get(c));
+            }
         } catch (IOException e) {
             throw new RuntimeException("error reading labels file!", e);
         }
     }
 
     public Recognition classifyImage(Bitmap sourceImage, int orientation) {
+        return classifyImage(sourceImage, orientation, null);
+    }
 
-        Bitmap resizedBitmap = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888);
+    /**
+     * Classifies the square around {@code face}, or the center square of the image if it is null.
+     *
+     * @return the best class, null if the model has no classes
+     */
+    public Recognition classifyImage(Bitmap sourceImage, int orientation, RectF face) {
+        List<RectF> faces = new ArrayList<>(1);
+        faces.add(face);
+        return classifyFaces(sourceImage, orientation, faces).get(0);
+    }
 
-        cropAndRescaleBitmap(sourceImage, resizedBitmap, orientation);
+    /**
+     * Classifies every face crop of the image in a single batched graph run. A null entry stands
+     * for the center square. At most {@link #MAX_BATCH} faces are classified, cache hits are
+     * left out of the batch. With a head set, the scores come from the head instead of the graph
+     * output.
+     *
+     * @return one recognition per classified face, in the order of {@code faces}, null for a
+     * face no class was scored for
+     */
+    public List<Recognition> classifyFaces(Bitmap sourceImage, int orientation, List<RectF> faces) {
+        final RecognitionBuffer results = new RecognitionBuffer(Math.min(faces.size(), MAX_BATCH));
+        classifyFaces(sourceImage, orientation, faces, results);
+        return results.toRecognitions();
+    }
 
-        String[] outputNames = new String[]{OUTPUT_NAME};
-        int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
-        float[] floatValues = new float[INPUT_SIZE * INPUT_SIZE * 3];
-        float[] outputs = new float[numberOfClasses];
+    /**
+     * Like {@link #classifyFaces(Bitmap, int, List)} but fills {@code out}, one entry per
+     * classified face located at the face, without allocating per call.
+     */
+    public void classifyFaces(Bitmap sourceImage, int orientation, List<RectF> faces, RecognitionBuffer out) {
+        out.clear();
+        // Read before the head, so the results of a head swapped in meanwhile go stale.
+        final int generation = modelGeneration.get();
+        final int count = Math.min(faces.size(), MAX_BATCH);
+        int batchSize = 0;
+
+        for (int f = 0; f < count; ++f) {
+            final RectF face = faces.get(f);
+            out.add(face);
+            loadPixels(sourceImage, orientation, face);
+
+            hashes[f] = PerceptualHash.dHash(intValues, INPUT_SIZE, INPUT_SIZE);
+            if (useResultCache && resultCache.get(hashes[f], generation, out, f)) {
+                continue;
+            }
+
+            writeInput(batchSize);
+            batchToFace[batchSize++] = f;
+        }
 
-        resizedBitmap.getPixels(intValues, 0, resizedBitmap.getWidth(), 0, 0, resizedBitmap.getWidth(), resizedBitmap.getHeight());
+        scoreBatch(batchSize, batchToFace, out, useResultCache ? hashes : null, generation);
+    }
+
+    /**
+     * Classifies whole bitmaps, such as tiles decoded from a larger picture, in batches of
+     * {@link #MAX_BATCH}. Non-square tiles are center-cropped. The result cache is bypassed.
+     *
+     * @param locations   reported as the location of each tile's recognition
+     * @param orientation clockwise degrees that turn the tiles upright
+     * @return one recognition per tile, in the order of {@code tiles}, null for a tile no class
+     * was scored for
+     */
+    public List<Recognition> classifyTiles(List<Bitmap> tiles, List<RectF> locations, int orientation) {
+        final RecognitionBuffer results = new RecognitionBuffer(tiles.size());
+        for (RectF location : locations) {
+            results.add(location);
+        }
+        final int[] batchToTile = new int[MAX_BATCH];
+        for (int start = 0; start < tiles.size(); start += MAX_BATCH) {
+            final int batchSize = Math.min(MAX_BATCH, tiles.size() - start);
+            for (int b = 0; b < batchSize; ++b) {
+                loadPixels(tiles.get(start + b), orientation, null);
+                writeInput(b);
+                batchToTile[b] = start + b;
+            }
+            scoreBatch(batchSize, batchToTile, results, null, 0);
+        }
+        return results.toRecognitions();
+    }
+
+    /**
+     * Runs the batch written by {@link #writeInput(int)} and sets the best class of batch entry
+     * {@code b} as entry {@code batchToEntry[b]} of {@code results}, cached under {@code hashes}
+     * and {@code generation} if given.
+     */
+    private void scoreBatch(int batchSize, int[] batchToEntry, RecognitionBuffer results, long[] hashes,
+                            int generation) {
+        // A call served entirely from the cache has no scores either.
+        scoredBatch = 0;
+        if (batchSize == 0) {
+            return;
+        }
+        final LinearHead head = this.head;
+        final float[] scores;
+        if (head != null) {
+            // Trained on-device head on top of the embedding layer.
+            final float[] embeddings = runEmbedding(batchSize);
+            scoreCount = head.getClassCount();
+            if (headScores.length < MAX_BATCH * scoreCount) {
+                headScores = new float[MAX_BATCH * scoreCount];
+            }
+            for (int b = 0; b < batchSize; ++b) {
+                head.classify(embeddings, b * embeddingSize, headScores, b * scoreCount);
+            }
+            scores = headScores;
+        } else {
+            scores = runInference(batchSize);
+            scoreCount = numberOfClasses;
+        }
+        // Kept in the reused buffers for getScores and getTopK.
+        lastScores = scores;
+        scoredHead = head;
+        scoredBatch = batchSize;
+
+        for (int b = 0; b < batchSize; ++b) {
+            final int e = batchToEntry[b];
+            scoredEntries[b] = e;
+            if (selectTopK(scores, b * scoreCount, scoreCount, 1, topIndex, topScore) == 0) {
+                continue;
+            }
+            final int label = head != null ? head.getLabel(topIndex[0]) : classLabel(topIndex[0]);
+            results.set(e, label, topScore[0]);
+            if (hashes != null) {
+                resultCache.put(hashes[e], label, topScore[0], generation);
+            }
+        }
+    }
+
+    /**
+     * @return the number of scores per entry in the last run, the classes of the model or of the
+     * head if one was set.
+     */
+    public int getScoreCount() {
+        return scoreCount;
+    }
+
+    /**
+     * @return the label of a score index of the last run, as reported by {@link #getTopK}.
+     */
+    public String getClassLabel(int classIndex) {
+        final LinearHead head = scoredHead;
+        return head != null ? head.getTagName(classIndex) : labels.get(classIndex);
+    }
+
+    /**
+     * Copies the raw scores of an entry of the last classifyFaces or classifyTiles call into
+     * {@code dst}, which holds at least {@link #getScoreCount()} values.
+     *
+     * @param entry index into the faces or tiles of that call
+     * @return the number of scores copied, 0 if the entry was served from the cache or was not
+     * part of the last batch
+     */
+    public int getScores(int entry, float[] dst) {
+        final int b = batchIndexOf(entry);
+        if (b < 0) {
+            return 0;
+        }
+        System.arraycopy(lastScores, b * scoreCount, dst, 0, scoreCount);
+        return scoreCount;
+    }
+
+    /**
+     * Selects the {@code k} best classes of an entry of the last call, best first, into the
+     * caller's arrays.
+     *
+     * @return the number of classes selected, 0 under the same conditions as {@link #getScores}
+     */
+    public int getTopK(int entry, int k, int[] classes, float[] scores) {
+        final int b = batchIndexOf(entry);
+        if (b < 0) {
+            return 0;
+        }
+        return selectTopK(lastScores, b * scoreCount, scoreCount, k, classes, scores);
+    }
+
+    private int batchIndexOf(int entry) {
+        for (int b = 0; b < scoredBatch; ++b) {
+            if (scoredEntries[b] == entry) {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    private int classLabel(int c) {
+        if (!RecognitionBuffer.isInterned(classLabels[c])) {
+            classLabels[c] = RecognitionBuffer.intern("0", labels.get(c));
+        }
+        return classLabels[c];
+    }
+
+    /**
+     * Partial selection of the {@code k} largest of {@code values[offset .. offset + length)} by
+     * insertion into the output arrays, best first. Runs in O(length * k) without allocating.
+     *
+     * @return {@code min(k, length)}
+     */
+    static int selectTopK(float[] values, int offset, int length, int k, int[] indices, float[] top) {
+        if (k <= 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < length; ++i) {
+            final float v = values[offset + i];
+            if (count == k && !(v > top[k - 1])) {
+                continue;
+            }
+            int j = count < k ? count++ : k - 1;
+            while (j > 0 && top[j - 1] < v) {
+                top[j] = top[j - 1];
+                indices[j] = indices[j - 1];
+                j--;
+            }
+            top[j] = v;
+            indices[j] = i;
+        }
+        return count;
+    }
+
+    /**
+     * Computes the embedding of every face crop in one batched run of the graph up to the
+     * embedding layer.
+     *
+     * @return {@link #getEmbeddingSize()} values per face, in the order of {@code faces}
+     */
+    public float[] computeEmbeddings(Bitmap sourceImage, int orientation, List<RectF> faces) {
+        if (embeddingName == null) {
+            throw new IllegalStateException("The model has no embedding layer");
+        }
+        final int count = Math.min(faces.size(), MAX_BATCH);
+        if (count == 0) {
+            return new float[0];
+        }
+        for (int f = 0; f < count; ++f) {
+            loadPixels(sourceImage, orientation, faces.get(f));
+            writeInput(f);
+        }
+        return runEmbedding(count);
+    }
+
+    public boolean hasEmbeddingLayer() {
+        return embeddingName != null;
+    }
+
+    /**
+     * @return the embedding dimension, or 0 if the model has no embedding layer.
+     */
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    /**
+     * Classifies with {@code head} on top of the embedding layer instead of the graph output,
+     * or with the graph output again if it is null.
+     */
+    public void setHead(LinearHead head) {
+        if (head != null && head.getDimension() != embeddingSize) {
+            throw new IllegalArgumentException("Head expects embeddings of size " + head.getDimension()
+                    + " but the model produces " + embeddingSize);
+        }
+        this.head = head;
+        modelGeneration.incrementAndGet();
+    }
+
+    public boolean hasHead() {
+        return head != null;
+    }
+
+    /**
+     * Crops, scales and rotates the face (or the center square) into {@code intValues}.
+     */
+    private void loadPixels(Bitmap sourceImage, int orientation, RectF face) {
+        final int width = sourceImage.getWidth();
+        final int height = sourceImage.getHeight();
+        if (sourceImage != pixelsSource || sourceImage.getGenerationId() != pixelsGeneration) {
+            if (sourcePixels.length < width * height) {
+                sourcePixels = new int[width * height];
+            }
+            sourceImage.getPixels(sourcePixels, 0, width, 0, 0, width, height);
+            pixelsSource = sourceImage;
+            pixelsGeneration = sourceImage.getGenerationId();
+        }
+        cropPixels(resampler, sourcePixels, width, height, orientation, face, intValues);
+    }
+
+    /**
+     * The crop of {@link #cropAndRescaleBitmap} or {@link #cropFaceAndRescaleBitmap} done on
+     * pixel arrays, into {@code dst} of {@link #INPUT_SIZE} squared pixels. Both rotate around
+     * the center of the crop.
+     */
+    static void cropPixels(Resampler resampler, int[] src, int width, int height, int orientation, RectF face, int[] dst) {
+        final float left;
+        final float top;
+        final float side;
+        if (face == null) {
+            // The center square scaled to RESIZE_SIZE, of which the center INPUT_SIZE is kept.
+            final float minDim = Math.min(width, height);
+            final float inset = minDim * ((RESIZE_SIZE - INPUT_SIZE) / 2) / RESIZE_SIZE;
+            left = (width - minDim) / 2 + inset;
+            top = (height - minDim) / 2 + inset;
+            side = minDim * INPUT_SIZE / RESIZE_SIZE;
+        } else {
+            side = Math.max(face.width(), face.height()) * FACE_CROP_SCALE;
+            left = face.centerX() - side / 2;
+            top = face.centerY() - side / 2;
+        }
+        resampler.resample(src, width, height, width, left, top, side, side, orientation, dst, INPUT_SIZE, INPUT_SIZE);
+    }
+
+    /**
+     * Times {@link #cropPixels} against the Canvas crop it replaced on {@code sample}, for the
+     * center square and for a face box in the middle, and logs the mean absolute difference
+     * between the two outputs. The Canvas crop samples the nearest pixel while the resampler
+     * filters, so the difference grows with the amount of detail lost to downscaling.
+     */
+    public static void benchmarkResampler(final Bitmap sample, final int orientation, int iterations) {
+        final int width = sample.getWidth();
+        final int height = sample.getHeight();
+        final int[] src = new int[width * height];
+        final Resampler resampler = new Resampler();
+        final int[] arrayPixels = new int[INPUT_SIZE * INPUT_SIZE];
+        final int[] canvasPixels = new int[INPUT_SIZE * INPUT_SIZE];
+        final Bitmap resized = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888);
+        final float faceSize = Math.min(width, height) / 3.f;
+        final RectF[] crops = {null, new RectF((width - faceSize) / 2, (height - faceSize) / 2,
+                (width + faceSize) / 2, (height + faceSize) / 2)};
+        try {
+            for (final RectF face : crops) {
+                final String name = face == null ? "center" : "face";
+                final Benchmark.Result canvas = Benchmark.measure(name + " canvas", 2, iterations, new Benchmark.Task() {
+                    @Override public void run() {
+                        resized.eraseColor(Color.TRANSPARENT);
+                        if (face == null) {
+                            cropAndRescaleBitmap(sample, resized, orientation);
+                        } else {
+                            cropFaceAndRescaleBitmap(sample, resized, orientation, face);
+                        }
+                        resized.getPixels(canvasPixels, 0, INPUT_SIZE, 0, 0, INPUT_SIZE, INPUT_SIZE);
+                    }
+                });
+                final Benchmark.Result array = Benchmark.measure(name + " resampler", 2, iterations, new Benchmark.Task() {
+                    @Override public void run() {
+                        sample.getPixels(src, 0, width, 0, 0, width, height);
+                        cropPixels(resampler, src, width, height, orientation, face, arrayPixels);
+                    }
+                });
+                long difference = 0;
+                for (int i = 0; i < arrayPixels.length; i++) {
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        difference += Math.abs(((arrayPixels[i] >> shift) & 0xFF) - ((canvasPixels[i] >> shift) & 0xFF));
+                    }
+                }
+                LOGGER.i("%s, %s, mean difference %.2f", canvas, array, difference / (3.0 * arrayPixels.length));
+            }
+        } catch (Exception e) {
+            LOGGER.e(e, "Resampler benchmark failed");
+        } finally {
+            resized.recycle();
+        }
+    }
+
+    /**
+     * Writes the pixels in {@code intValues} as batch entry {@code batchIndex} of the input tensor.
+     */
+    private void writeInput(int batchIndex) {
+        final int offset = batchIndex * INPUT_SIZE * INPUT_SIZE * 3;
+        final int rowLength = INPUT_SIZE * 3;
+        if (quantizedInput) {
+            // Packed uint8 BGR, mean subtraction (if any) is part of the quantized graph.
+            for (int y = 0, p = 0; y < INPUT_SIZE; ++y) {
+                for (int i = 0; i < rowLength; i += 3, ++p) {
+                    final int val = intValues[p];
+                    rowBytes[i] = (byte) val;
+                    rowBytes[i + 1] = (byte) (val >> 8);
+                    rowBytes[i + 2] = (byte) (val >> 16);
+                }
+                byteValues.position(offset + y * rowLength);
+                byteValues.put(rowBytes);
+            }
+            byteValues.clear();
+            return;
+        }
 
         final float IMAGE_MEAN_R;
         final float IMAGE_MEAN_G;
@@ -176,30 +724,177 @@ public class MSCognitiveServicesClassifier {
             IMAGE_MEAN_B = 105.f;
         }
 
-        for (int i = 0; i < intValues.length; ++i) {
-            final int val = intValues[i];
-            floatValues[i * 3] = (float) (val & 0xFF) - IMAGE_MEAN_B;
-            floatValues[i * 3 + 1] = (float) ((val >> 8) & 0xFF) - IMAGE_MEAN_G;
-            floatValues[i * 3 + 2] = (float) ((val >> 16) & 0xFF) - IMAGE_MEAN_R;
+        // Channel swap and mean subtraction into a row on the heap, then one bulk copy per row
+        // into the direct buffer: no per-element buffer calls and no full-size heap tensor.
+        for (int y = 0, p = 0; y < INPUT_SIZE; ++y) {
+            for (int i = 0; i < rowLength; i += 3, ++p) {
+                final int val = intValues[p];
+                rowFloats[i] = (val & 0xFF) - IMAGE_MEAN_B;
+                rowFloats[i + 1] = ((val >> 8) & 0xFF) - IMAGE_MEAN_G;
+                rowFloats[i + 2] = ((val >> 16) & 0xFF) - IMAGE_MEAN_R;
+            }
+            floatValues.position(offset + y * rowLength);
+            floatValues.put(rowFloats);
         }
+        floatValues.clear();
+    }
 
-        inferenceInterface.feed(INPUT_NAME, floatValues, 1, INPUT_SIZE, INPUT_SIZE, 3);
+    /**
+     * Runs the graph on the first {@code batchSize} entries of the input buffers.
+     *
+     * @return the scores, {@code numberOfClasses} per batch entry
+     */
+    private float[] runInference(int batchSize) {
+        final int outputLength = batchSize * numberOfClasses;
+
+        feedInput(batchSize);
         inferenceInterface.run(outputNames);
-        inferenceInterface.fetch(OUTPUT_NAME, outputs);
 
-        int maxIndex = -1;
-        float maxConf = 0.f;
+        if (quantizedOutput) {
+            byteOutputs.position(0).limit(outputLength);
+            inferenceInterface.fetch(OUTPUT_NAME, byteOutputs);
+            byteOutputs.clear();
+            for (int i = 0; i < outputLength; ++i) {
+                outputs[i] = outputMin + (byteOutputs.get(i) & 0xFF) * outputScale;
+            }
+        } else {
+            inferenceInterface.fetch(OUTPUT_NAME, FloatBuffer.wrap(outputs, 0, outputLength));
+        }
+        return outputs;
+    }
+
+    private float[] runEmbedding(int batchSize) {
+        feedInput(batchSize);
+        inferenceInterface.run(new String[]{embeddingName});
+        final float[] embeddings = new float[inferenceInterface.fetchSize(embeddingName)];
+        inferenceInterface.fetch(embeddingName, embeddings);
+        return embeddings;
+    }
+
+    private void feedInput(int batchSize) {
+        final int inputLength = batchSize * INPUT_SIZE * INPUT_SIZE * 3;
+        if (quantizedInput) {
+            byteValues.position(0).limit(inputLength);
+            inferenceInterface.feed(INPUT_NAME, byteValues, batchSize, INPUT_SIZE, INPUT_SIZE, 3);
+            byteValues.clear();
+        } else {
+            floatValues.position(0).limit(inputLength);
+            inferenceInterface.feed(INPUT_NAME, floatValues, batchSize, INPUT_SIZE, INPUT_SIZE, 3);
+            floatValues.clear();
+        }
+    }
 
-        for (int i = 0; i < outputs.length; ++i) {
-            if (outputs[i] > maxConf) {
-                maxConf = outputs[i];
-                maxIndex = i;
+    public void close() {
+        inferenceInterface.close();
+    }
+
+    /**
+     * Sweeps a set of threading profiles on the current device and returns the best one.
+     * <p>
+     * Latency is the mean time of one graph run. Throughput runs one session per
+     * {@code cores / intraOpThreads} in parallel and reports the combined frames per second.
+     * The winner is the profile with the highest throughput among those whose latency stays
+     * within 25% of the fastest profile.
+     */
+    public static ThreadingProfile benchmarkThreadingProfiles(final Context context, final Bitmap sample,
+                                                              final int orientation, final int iterations) {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        List<ThreadingProfile> profiles = new ArrayList<>();
+        profiles.add(ThreadingProfile.DEFAULT);
+        profiles.add(new ThreadingProfile(0, 1, ThreadingProfile.CoreAffinity.BIG_CORES));
+        for (int intra = 1; intra <= cores; intra *= 2) {
+            profiles.add(new ThreadingProfile(intra, 1, ThreadingProfile.CoreAffinity.ANY));
+            profiles.add(new ThreadingProfile(intra, 2, ThreadingProfile.CoreAffinity.ANY));
+        }
+
+        double[] latencies = new double[profiles.size()];
+        double[] throughputs = new double[profiles.size()];
+        double bestLatency = Double.MAX_VALUE;
+        for (int p = 0; p < profiles.size(); p++) {
+            ThreadingProfile profile = profiles.get(p);
+            int intra = profile.resolveIntraOpThreads();
+            int sessions = intra == 0 ? 1 : Math.max(1, cores / intra);
+            try {
+                latencies[p] = measureLatency(context, profile, sample, orientation, iterations);
+                throughputs[p] = measureThroughput(context, profile, sample, orientation, iterations, sessions);
+            } catch (Exception e) {
+                LOGGER.e(e, "Benchmark of profile %s failed", profile);
+                latencies[p] = Double.MAX_VALUE;
+                continue;
             }
+            bestLatency = Math.min(bestLatency, latencies[p]);
+            LOGGER.i("profile %s: latency %.1fms, throughput %.1f fps (%d sessions)",
+                    profile, latencies[p], throughputs[p], sessions);
         }
 
-        return new Recognition("0", labels.get(maxIndex), maxConf, null);
+        ThreadingProfile best = ThreadingProfile.DEFAULT;
+        double bestThroughput = 0;
+        for (int p = 0; p < profiles.size(); p++) {
+            if (latencies[p] <= bestLatency * 1.25 && throughputs[p] > bestThroughput) {
+                bestThroughput = throughputs[p];
+                best = profiles.get(p);
+            }
+        }
+        LOGGER.i("Best threading profile: %s", best);
+        return best;
+    }
+
+    private static double measureLatency(Context context, ThreadingProfile profile, final Bitmap sample,
+                                         final int orientation, int iterations) throws Exception {
+        final MSCognitiveServicesClassifier classifier = new MSCognitiveServicesClassifier(context, profile);
+        classifier.useResultCache = false;
+        try {
+            return Benchmark.measure(profile.toString(), 2, iterations, new Benchmark.Task() {
+                @Override public void run() {
+                    classifier.classifyImage(sample, orientation);
+                }
+            }).getMeanMs();
+        } finally {
+            classifier.close();
+        }
+    }
+
+    private static double measureThroughput(Context context, ThreadingProfile profile, final Bitmap sample,
+                                            final int orientation, final int iterations, int sessions) throws Exception {
+        final List<MSCognitiveServicesClassifier> classifiers = new ArrayList<>();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        try {
+            for (int i = 0; i < sessions; i++) {
+                MSCognitiveServicesClassifier classifier = new MSCognitiveServicesClassifier(context, profile);
+                classifier.useResultCache = false;
+                classifiers.add(classifier);
+            }
+            final CountDownLatch done = new CountDownLatch(sessions);
+            long start = System.nanoTime();
+            for (final MSCognitiveServicesClassifier classifier : classifiers) {
+                new Thread(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            for (int i = 0; i < iterations; i++) {
+                                classifier.classifyImage(sample, orientation);
+                            }
+                        } catch (RuntimeException e) {
+                            failure.set(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            done.await();
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return sessions * iterations / seconds;
+        } finally {
+            for (MSCognitiveServicesClassifier classifier : classifiers) {
+                classifier.close();
+            }
+        }
     }
 
+    // Reference for cropPixels, only used by benchmarkResampler.
     // function copied from TensorFlow samples
     // Copyright 2017 The TensorFlow Authors.  All rights reserved.
     private static void cropAndRescaleBitmap(final Bitmap src, final Bitmap dst, int sensorOrientation) {
@@ -239,4 +934,21 @@ public class MSCognitiveServicesClassifier {
         final Canvas canvas = new Canvas(dst);
         canvas.drawBitmap(src, matrix, null);
     }
+
+    private static void cropFaceAndRescaleBitmap(final Bitmap src, final Bitmap dst, int sensorOrientation, final RectF face) {
+        final float side = Math.max(face.width(), face.height()) * FACE_CROP_SCALE;
+
+        final Matrix matrix = new Matrix();
+        matrix.postTranslate(-(face.centerX() - side / 2), -(face.centerY() - side / 2));
+        matrix.postScale(dst.getWidth() / side, dst.getHeight() / side);
+
+        if (sensorOrientation != 0) {
+            matrix.postTranslate(-dst.getWidth() / 2.0f, -dst.getHeight() / 2.0f);
+            matrix.postRotate(sensorOrientation);
+            matrix.postTranslate(dst.getWidth() / 2.0f, dst.getHeight() / 2.0f);
+        }
+
+        final Canvas canvas = new Canvas(dst);
+        canvas.drawBitmap(src, matrix, null);
+    }
 }
@@ -65,6 +65,10 @@ class Recognition {
         return confidence;
     }
 
+    public RectF getLocation() {
+        return location;
+    }
+
     @Override
     public String toString() {
         String resultString = "";
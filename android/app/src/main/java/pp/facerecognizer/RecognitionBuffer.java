@@ -0,0 +1,250 @@
+package pp.facerecognizer;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reusable list of recognitions held in primitive arrays, for the per-frame path.
+ * <p>
+ * Every entry is an interned label, a score and an optional box. Labels are interned once per
+ * distinct id and title pair into a process-wide table, so an entry carries only an int and the
+ * strings are looked up where they are needed: for drawing, logging, or when a {@link Recognition}
+ * is materialized for callers outside the live path. The table is cleared when the model or labels
+ * change; labels are never reused, so one interned before that resolves to no title instead of
+ * another one.
+ */
+class RecognitionBuffer {
+
+    /**
+     * Label of an entry the classifier was not confident about.
+     */
+    static final int NO_LABEL = -1;
+
+    private static final List<String> labelIds = new ArrayList<>();
+    private static final List<String> labelTitles = new ArrayList<>();
+    private static final Map<String, Map<String, Integer>> labelsById = new HashMap<>();
+    // Label of labelIds[0], the ones below were dropped by clearLabels().
+    private static int firstLabel;
+
+    private int size;
+    private int[] labels;
+    private float[] scores;
+    // left, top, right, bottom per entry, left is NaN for an entry without a box.
+    private float[] boxes;
+
+    RecognitionBuffer(int capacity) {
+        labels = new int[capacity];
+        scores = new float[capacity];
+        boxes = new float[capacity * 4];
+    }
+
+    /**
+     * @return the label of the id and title pair, the same one for every call with equal strings
+     */
+    static synchronized int intern(String id, String title) {
+        Map<String, Integer> byTitle = labelsById.get(id);
+        if (byTitle == null) {
+            byTitle = new HashMap<>();
+            labelsById.put(id, byTitle);
+        }
+        Integer label = byTitle.get(title);
+        if (label == null) {
+            label = firstLabel + labelIds.size();
+            labelIds.add(id);
+            labelTitles.add(title);
+            byTitle.put(title, label);
+        }
+        return label;
+    }
+
+    /**
+     * @return true unless the label was dropped by {@link #clearLabels()}
+     */
+    static synchronized boolean isInterned(int label) {
+        return label >= firstLabel && label < firstLabel + labelIds.size();
+    }
+
+    /**
+     * @return the id of the label, null if it was dropped
+     */
+    static synchronized String getLabelId(int label) {
+        return isInterned(label) ? labelIds.get(label - firstLabel) : null;
+    }
+
+    /**
+     * @return the title of the label, null if it was dropped
+     */
+    static synchronized String getLabelTitle(int label) {
+        return isInterned(label) ? labelTitles.get(label - firstLabel) : null;
+    }
+
+    /**
+     * Drops every interned label. Holders of labels intern them again through
+     * {@link #isInterned(int)} before their next use.
+     */
+    static synchronized void clearLabels() {
+        firstLabel += labelIds.size();
+        labelIds.clear();
+        labelTitles.clear();
+        labelsById.clear();
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Appends an entry without a label and with the box of {@code location}, if any.
+     *
+     * @return the index of the new entry
+     */
+    int add(RectF location) {
+        if (location == null) {
+            return add(NO_LABEL, 0.f);
+        }
+        return add(NO_LABEL, 0.f, location.left, location.top, location.right, location.bottom);
+    }
+
+    /**
+     * Appends an entry without a box.
+     *
+     * @return the index of the new entry
+     */
+    int add(int label, float score) {
+        return add(label, score, Float.NaN, 0.f, 0.f, 0.f);
+    }
+
+    /**
+     * @return the index of the new entry
+     */
+    int add(int label, float score, float left, float top, float right, float bottom) {
+        if (size == labels.length) {
+            grow();
+        }
+        final int i = size++;
+        labels[i] = label;
+        scores[i] = score;
+        boxes[i * 4] = left;
+        boxes[i * 4 + 1] = top;
+        boxes[i * 4 + 2] = right;
+        boxes[i * 4 + 3] = bottom;
+        return i;
+    }
+
+    void set(int i, int label, float score) {
+        labels[i] = label;
+        scores[i] = score;
+    }
+
+    int getLabel(int i) {
+        return labels[i];
+    }
+
+    float getScore(int i) {
+        return scores[i];
+    }
+
+    String getTitle(int i) {
+        return labels[i] == NO_LABEL ? null : getLabelTitle(labels[i]);
+    }
+
+    boolean hasBox(int i) {
+        return !Float.isNaN(boxes[i * 4]);
+    }
+
+    /**
+     * Copies the box of entry {@code i} into {@code dst}.
+     */
+    void getBox(int i, RectF dst) {
+        dst.set(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]);
+    }
+
+    /**
+     * Drops the entries without a label, in place.
+     */
+    void removeUnlabeled() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (labels[i] == NO_LABEL) {
+                continue;
+            }
+            if (kept != i) {
+                labels[kept] = labels[i];
+                scores[kept] = scores[i];
+                System.arraycopy(boxes, i * 4, boxes, kept * 4, 4);
+            }
+            kept++;
+        }
+        size = kept;
+    }
+
+    /**
+     * @return entry {@code i} as a recognition, null if it has no label
+     */
+    Recognition toRecognition(int i) {
+        if (labels[i] == NO_LABEL || !isInterned(labels[i])) {
+            return null;
+        }
+        final RectF location = hasBox(i)
+                ? new RectF(boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]) : null;
+        return new Recognition(getLabelId(labels[i]), getLabelTitle(labels[i]), scores[i], location);
+    }
+
+    /**
+     * @return one recognition per entry, null for the entries without a label
+     */
+    List<Recognition> toRecognitions() {
+        final List<Recognition> recognitions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            recognitions.add(toRecognition(i));
+        }
+        return recognitions;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            if (labels[i] == NO_LABEL) {
+                sb.append("(none)");
+                continue;
+            }
+            sb.append('[').append(getLabelId(labels[i])).append("] ").append(getLabelTitle(labels[i]));
+            sb.append(String.format(Locale.US, " (%.1f%%)", scores[i] * 100.f));
+            if (hasBox(i)) {
+                sb.append(String.format(Locale.US, " [%.0f, %.0f, %.0f, %.0f]",
+                        boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]));
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+    private void grow() {
+        final int capacity = Math.max(4, labels.length * 2);
+        final int[] grownLabels = new int[capacity];
+        System.arraycopy(labels, 0, grownLabels, 0, size);
+        labels = grownLabels;
+        final float[] grownScores = new float[capacity];
+        System.arraycopy(scores, 0, grownScores, 0, size);
+        scores = grownScores;
+        final float[] grownBoxes = new float[capacity * 4];
+        System.arraycopy(boxes, 0, grownBoxes, 0, size * 4);
+        boxes = grownBoxes;
+    }
+}
@@ -0,0 +1,183 @@
+package pp.facerecognizer;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import pp.facerecognizer.env.PerceptualHash;
+
+/**
+ * Bounded LRU cache from a 64-bit perceptual hash to the last label and score for that image.
+ * <p>
+ * Lookups tolerate up to {@code maxDistance} differing bits. The hash is split into four 16-bit
+ * chunks, each indexed separately: two hashes within distance 3 share at least one identical
+ * chunk, so only the entries in four buckets have to be compared. Entries expire after
+ * {@code ttlMs} and are dropped as soon as a newer model generation is seen; lookups and results
+ * of an older generation are ignored.
+ */
+class RecognitionCache {
+
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_BITS = 16;
+    private static final int MAX_SUPPORTED_DISTANCE = CHUNKS - 1;
+
+    private static class Entry {
+        final long hash;
+        final int label;
+        final float score;
+        final long createdAt;
+
+        Entry(long hash, int label, float score, long createdAt) {
+            this.hash = hash;
+            this.label = label;
+            this.score = score;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final int capacity;
+    private final int maxDistance;
+    private final long ttlMs;
+
+    private final LinkedHashMap<Long, Entry> entries;
+    private final Map<Integer, List<Entry>> chunkIndex = new HashMap<>();
+    private int generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    RecognitionCache(int capacity, int maxDistance, long ttlMs) {
+        if (maxDistance > MAX_SUPPORTED_DISTANCE) {
+            throw new IllegalArgumentException("maxDistance must be at most " + MAX_SUPPORTED_DISTANCE);
+        }
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<>(capacity * 2, 0.75f, true);
+    }
+
+    /**
+     * Looks up the cached result closest to {@code hash} and sets it as entry {@code i} of
+     * {@code out}.
+     *
+     * @return false on a miss, leaving {@code out} untouched
+     */
+    synchronized boolean get(long hash, int modelGeneration, RecognitionBuffer out, int i) {
+        if (!checkGeneration(modelGeneration)) {
+            misses++;
+            return false;
+        }
+        final long now = SystemClock.uptimeMillis();
+        Entry best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int c = 0; c < CHUNKS; c++) {
+            List<Entry> bucket = chunkIndex.get(chunkKey(hash, c));
+            if (bucket == null) {
+                continue;
+            }
+            for (Entry entry : bucket) {
+                int distance = PerceptualHash.hammingDistance(hash, entry.hash);
+                if (distance <= maxDistance && distance < bestDistance && now - entry.createdAt <= ttlMs) {
+                    best = entry;
+                    bestDistance = distance;
+                }
+            }
+        }
+        if (best == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        entries.get(best.hash); // touch for LRU order
+        out.set(i, best.label, best.score);
+        return true;
+    }
+
+    /**
+     * @param label interned by {@link RecognitionBuffer#intern}
+     */
+    synchronized void put(long hash, int label, float score, int modelGeneration) {
+        if (!checkGeneration(modelGeneration)) {
+            // Scored by a model replaced meanwhile.
+            return;
+        }
+        Entry old = entries.remove(hash);
+        if (old != null) {
+            unindex(old);
+        }
+        Entry entry = new Entry(hash, label, score, SystemClock.uptimeMillis());
+        entries.put(hash, entry);
+        for (int c = 0; c < CHUNKS; c++) {
+            int key = chunkKey(hash, c);
+            List<Entry> bucket = chunkIndex.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>(2);
+                chunkIndex.put(key, bucket);
+            }
+            bucket.add(entry);
+        }
+        if (entries.size() > capacity) {
+            Iterator<Entry> it = entries.values().iterator();
+            Entry eldest = it.next();
+            it.remove();
+            unindex(eldest);
+            evictions++;
+        }
+    }
+
+    synchronized void invalidate() {
+        entries.clear();
+        chunkIndex.clear();
+    }
+
+    synchronized float getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.f : (float) hits / total;
+    }
+
+    synchronized String getStats() {
+        return String.format(Locale.US, "hits=%d misses=%d evictions=%d size=%d hitRate=%.1f%%",
+                hits, misses, evictions, entries.size(), getHitRate() * 100.f);
+    }
+
+    /**
+     * Drops the entries of older generations once {@code modelGeneration} moves ahead.
+     *
+     * @return false if {@code modelGeneration} is older than the cached entries
+     */
+    private boolean checkGeneration(int modelGeneration) {
+        if (modelGeneration - generation < 0) {
+            return false;
+        }
+        if (modelGeneration != generation) {
+            invalidate();
+            generation = modelGeneration;
+        }
+        return true;
+    }
+
+    private void unindex(Entry entry) {
+        for (int c = 0; c < CHUNKS; c++) {
+            int key = chunkKey(entry.hash, c);
+            List<Entry> bucket = chunkIndex.get(key);
+            if (bucket != null) {
+                bucket.remove(entry);
+                if (bucket.isEmpty()) {
+                    chunkIndex.remove(key);
+                }
+            }
+        }
+    }
+
+    private static int chunkKey(long hash, int chunk) {
+        int value = (int) (hash >>> (chunk * CHUNK_BITS)) & 0xFFFF;
+        return (chunk << CHUNK_BITS) | value;
+    }
+}
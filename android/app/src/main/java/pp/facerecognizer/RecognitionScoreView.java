@@ -23,11 +23,10 @@ import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
 
-import java.util.List;
-
 public class RecognitionScoreView extends View implements ResultsView {
     private static final float TEXT_SIZE_DIP = 24;
-    private List<Recognition> results;
+    private static final String SEPARATOR = ", ";
+    private volatile RecognitionBuffer results;
     private final Paint fgPaint;
 
     public RecognitionScoreView(final Context context, final AttributeSet set) {
@@ -40,7 +39,7 @@ public class RecognitionScoreView extends View implements ResultsView {
     }
 
     @Override
-    public void setResults(final List<Recognition> results) {
+    public void setResults(final RecognitionBuffer results) {
         this.results = results;
         postInvalidate();
     }
@@ -50,11 +49,34 @@ public class RecognitionScoreView extends View implements ResultsView {
 
         fgPaint.setColor(Color.WHITE);
 
+        final RecognitionBuffer results = this.results;
         if (results != null && results.size() > 0) {
             int y = (int) (fgPaint.getTextSize() * 1.4f);
-            final Recognition recog = results.get(0);
-            final int x = (int) (canvas.getWidth() - fgPaint.measureText(recog.getTitle())) / 2;
-            canvas.drawText(recog.getTitle(), x, y, fgPaint);
+            // The titles are drawn one after the other rather than joined into a new string.
+            final float separatorWidth = fgPaint.measureText(SEPARATOR);
+            // Titles of labels dropped since the results were made are skipped.
+            float width = -separatorWidth;
+            for (int i = 0; i < results.size(); i++) {
+                final String title = results.getTitle(i);
+                if (title != null) {
+                    width += separatorWidth + fgPaint.measureText(title);
+                }
+            }
+            float x = (canvas.getWidth() - width) / 2;
+            boolean first = true;
+            for (int i = 0; i < results.size(); i++) {
+                final String title = results.getTitle(i);
+                if (title == null) {
+                    continue;
+                }
+                if (!first) {
+                    canvas.drawText(SEPARATOR, x, y, fgPaint);
+                    x += separatorWidth;
+                }
+                first = false;
+                canvas.drawText(title, x, y, fgPaint);
+                x += fgPaint.measureText(title);
+            }
         }
     }
 }
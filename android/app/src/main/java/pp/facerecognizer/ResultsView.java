@@ -15,8 +15,9 @@ limitations under the License.
 
 package pp.facerecognizer;
 
-import java.util.List;
-
 public interface ResultsView {
-    void setResults(final List<Recognition> results);
+    /**
+     * @param results kept until the next call, the caller does not modify it meanwhile
+     */
+    void setResults(final RecognitionBuffer results);
 }
@@ -0,0 +1,154 @@
+package pp.facerecognizer;
+
+import android.content.res.AssetManager;
+
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feed/run/fetch wrapper around a TensorFlow session, mirroring TensorFlowInferenceInterface
+ * but created with an explicit {@link ThreadingProfile}.
+ */
+class TensorFlowSession {
+
+    private static final String ASSET_PREFIX = "file:///android_asset/";
+
+    private final Graph graph;
+    private final Session session;
+
+    private final List<String> feedNames = new ArrayList<>();
+    private final List<Tensor> feedTensors = new ArrayList<>();
+    private final List<String> fetchNames = new ArrayList<>();
+    private final List<Tensor> fetchTensors = new ArrayList<>();
+
+    TensorFlowSession(AssetManager assetManager, String model, ThreadingProfile profile) {
+        graph = new Graph();
+        try {
+            graph.importGraphDef(readModel(assetManager, model));
+        } catch (IOException | IllegalArgumentException e) {
+            graph.close();
+            throw new RuntimeException("Failed to load model from '" + model + "'", e);
+        }
+        byte[] config = profile.toConfigProto();
+        session = config == null ? new Session(graph) : new Session(graph, config);
+    }
+
+    private static byte[] readModel(AssetManager assetManager, String model) throws IOException {
+        InputStream is = model.startsWith(ASSET_PREFIX)
+                ? assetManager.open(model.split(ASSET_PREFIX)[1])
+                : new FileInputStream(model);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(is.available(), 16384));
+            byte[] buffer = new byte[16384];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    Graph graph() {
+        return graph;
+    }
+
+    void feed(String inputName, float[] src, long... dims) {
+        addFeed(inputName, Tensor.create(dims, FloatBuffer.wrap(src)));
+    }
+
+    void feed(String inputName, FloatBuffer src, long... dims) {
+        addFeed(inputName, Tensor.create(dims, src));
+    }
+
+    /**
+     * Feeds a uint8 tensor.
+     */
+    void feed(String inputName, ByteBuffer src, long... dims) {
+        addFeed(inputName, Tensor.create(DataType.UINT8, dims, src));
+    }
+
+    void run(String[] outputNames) {
+        closeFetches();
+        Session.Runner runner = session.runner();
+        for (int i = 0; i < feedNames.size(); i++) {
+            runner.feed(feedNames.get(i), feedTensors.get(i));
+        }
+        for (String output : outputNames) {
+            fetchNames.add(output);
+            runner.fetch(output);
+        }
+        try {
+            fetchTensors.addAll(runner.run());
+        } finally {
+            closeFeeds();
+        }
+    }
+
+    /**
+     * @return the number of elements of a fetched output.
+     */
+    int fetchSize(String outputName) {
+        return getTensor(outputName).numElements();
+    }
+
+    void fetch(String outputName, float[] dst) {
+        getTensor(outputName).writeTo(FloatBuffer.wrap(dst));
+    }
+
+    void fetch(String outputName, FloatBuffer dst) {
+        getTensor(outputName).writeTo(dst);
+    }
+
+    void fetch(String outputName, ByteBuffer dst) {
+        getTensor(outputName).writeTo(dst);
+    }
+
+    void close() {
+        closeFeeds();
+        closeFetches();
+        session.close();
+        graph.close();
+    }
+
+    private void addFeed(String inputName, Tensor tensor) {
+        feedNames.add(inputName);
+        feedTensors.add(tensor);
+    }
+
+    private Tensor getTensor(String outputName) {
+        int i = fetchNames.indexOf(outputName);
+        if (i < 0) {
+            throw new RuntimeException("Node '" + outputName + "' was not provided to run(), so it cannot be read");
+        }
+        return fetchTensors.get(i);
+    }
+
+    private void closeFeeds() {
+        for (Tensor t : feedTensors) {
+            t.close();
+        }
+        feedTensors.clear();
+        feedNames.clear();
+    }
+
+    private void closeFetches() {
+        for (Tensor t : fetchTensors) {
+            t.close();
+        }
+        fetchTensors.clear();
+        fetchNames.clear();
+    }
+}
@@ -0,0 +1,157 @@
+package pp.facerecognizer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Threading configuration applied when the TensorFlow session is created.
+ * <p>
+ * Intra-op threads parallelize a single kernel, inter-op threads run independent kernels of the
+ * graph concurrently. A value of 0 lets the core affinity hint pick the count. Java cannot pin
+ * threads, so the hint only sizes the intra-op pool to the number of big (or little) cores.
+ */
+public class ThreadingProfile {
+
+    public enum CoreAffinity {
+        ANY, BIG_CORES, LITTLE_CORES
+    }
+
+    public static final ThreadingProfile DEFAULT = new ThreadingProfile(0, 0, CoreAffinity.ANY);
+
+    // ConfigProto field tags (field number << 3 | wire type varint).
+    private static final int INTRA_OP_PARALLELISM_THREADS_TAG = 2 << 3;
+    private static final int INTER_OP_PARALLELISM_THREADS_TAG = 5 << 3;
+    private static final int USE_PER_SESSION_THREADS_TAG = 9 << 3;
+
+    private static final String CPU_DIR = "/sys/devices/system/cpu/";
+
+    private final int intraOpThreads;
+    private final int interOpThreads;
+    private final CoreAffinity affinity;
+
+    public ThreadingProfile(int intraOpThreads, int interOpThreads, CoreAffinity affinity) {
+        this.intraOpThreads = intraOpThreads;
+        this.interOpThreads = interOpThreads;
+        this.affinity = affinity;
+    }
+
+    /**
+     * Parses "intra,inter[,affinity]", e.g. "2,1,BIG_CORES". Empty or invalid input gives DEFAULT.
+     */
+    public static ThreadingProfile parse(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return DEFAULT;
+        }
+        try {
+            String[] parts = value.split(",");
+            int intra = Integer.parseInt(parts[0].trim());
+            int inter = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 0;
+            CoreAffinity affinity = parts.length > 2 ? CoreAffinity.valueOf(parts[2].trim().toUpperCase(Locale.US)) : CoreAffinity.ANY;
+            return new ThreadingProfile(intra, inter, affinity);
+        } catch (IllegalArgumentException e) {
+            return DEFAULT;
+        }
+    }
+
+    public int getIntraOpThreads() {
+        return intraOpThreads;
+    }
+
+    public int getInterOpThreads() {
+        return interOpThreads;
+    }
+
+    public CoreAffinity getAffinity() {
+        return affinity;
+    }
+
+    /**
+     * @return the intra-op thread count to use, resolving 0 through the affinity hint.
+     */
+    int resolveIntraOpThreads() {
+        if (intraOpThreads > 0) {
+            return intraOpThreads;
+        }
+        switch (affinity) {
+            case BIG_CORES:
+                return Math.max(1, countCores(true));
+            case LITTLE_CORES:
+                return Math.max(1, countCores(false));
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return a serialized tensorflow.ConfigProto, or null when TensorFlow defaults should be used.
+     */
+    byte[] toConfigProto() {
+        int intra = resolveIntraOpThreads();
+        if (intra == 0 && interOpThreads == 0) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (intra > 0) {
+            writeVarint(out, INTRA_OP_PARALLELISM_THREADS_TAG);
+            writeVarint(out, intra);
+        }
+        if (interOpThreads > 0) {
+            writeVarint(out, INTER_OP_PARALLELISM_THREADS_TAG);
+            writeVarint(out, interOpThreads);
+        }
+        // Without per-session pools every session shares the pools of the first one created.
+        writeVarint(out, USE_PER_SESSION_THREADS_TAG);
+        writeVarint(out, 1);
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Counts cores whose maximum frequency equals (big) or is below (little) the fastest core.
+     */
+    static int countCores(boolean big) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long[] freqs = new long[cores];
+        long maxFreq = 0;
+        for (int i = 0; i < cores; i++) {
+            freqs[i] = readMaxFrequency(i);
+            maxFreq = Math.max(maxFreq, freqs[i]);
+        }
+        if (maxFreq == 0) {
+            return cores;
+        }
+        int count = 0;
+        for (long freq : freqs) {
+            if ((freq == maxFreq) == big) {
+                count++;
+            }
+        }
+        return count == 0 ? cores : count;
+    }
+
+    private static long readMaxFrequency(int cpu) {
+        File file = new File(CPU_DIR + "cpu" + cpu + "/cpufreq/cpuinfo_max_freq");
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            return line == null ? 0 : Long.parseLong(line.trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return intraOpThreads + "," + interOpThreads + "," + affinity;
+    }
+}
@@ -0,0 +1,157 @@
+package pp.facerecognizer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import pp.facerecognizer.env.BitmapDecoder;
+import pp.facerecognizer.env.Logger;
+
+/**
+ * Scans a large still for subjects too small to show up in the single center crop.
+ * <p>
+ * Square tiles are laid out at several scales, from the short side of the image halving down to
+ * the classifier input size, with {@link #OVERLAP} overlap between neighbours. Tiles are decoded
+ * one batch at a time with {@link BitmapRegionDecoder}, subsampled close to the input size, so the
+ * full-resolution bitmap is never in memory. Tiles are classified turned upright by the EXIF
+ * orientation of the still and located in upright pixels. Confident tile recognitions are merged
+ * per label by non-max suppression.
+ */
+class TiledScanner {
+    private static final Logger LOGGER = new Logger();
+
+    private static final float OVERLAP = 0.25f;
+    private static final int MAX_LEVELS = 4;
+    private static final float NMS_IOU = 0.3f;
+
+    private final MSCognitiveServicesClassifier classifier;
+
+    TiledScanner(MSCognitiveServicesClassifier classifier) {
+        this.classifier = classifier;
+    }
+
+    /**
+     * @param orientation EXIF orientation of the still, see {@link BitmapDecoder#readOrientation}
+     * @return the recognitions above {@code minConfidence}, located in upright image pixels, most
+     * confident first
+     */
+    List<Recognition> scan(InputStream in, int orientation, float minConfidence) throws IOException {
+        final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+        final int rotation = BitmapDecoder.rotationDegrees(orientation);
+        try {
+            final List<Rect> tiles = layoutTiles(decoder.getWidth(), decoder.getHeight());
+            final List<Recognition> hits = new ArrayList<>();
+            final List<Bitmap> batch = new ArrayList<>(MSCognitiveServicesClassifier.MAX_BATCH);
+            final List<RectF> locations = new ArrayList<>(MSCognitiveServicesClassifier.MAX_BATCH);
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            for (int start = 0; start < tiles.size(); start += MSCognitiveServicesClassifier.MAX_BATCH) {
+                final int end = Math.min(start + MSCognitiveServicesClassifier.MAX_BATCH, tiles.size());
+                for (int t = start; t < end; t++) {
+                    final Rect tile = tiles.get(t);
+                    options.inSampleSize = sampleSize(tile.width());
+                    final Bitmap bitmap = decoder.decodeRegion(tile, options);
+                    if (bitmap != null) {
+                        final RectF location = new RectF(tile);
+                        BitmapDecoder.toUpright(location, orientation, decoder.getWidth(), decoder.getHeight());
+                        batch.add(bitmap);
+                        locations.add(location);
+                    }
+                }
+                for (Recognition r : classifier.classifyTiles(batch, locations, rotation)) {
+                    // Null for a tile no class was scored for.
+                    if (r != null && r.getConfidence() > minConfidence) {
+                        hits.add(r);
+                    }
+                }
+                for (Bitmap bitmap : batch) {
+                    bitmap.recycle();
+                }
+                batch.clear();
+                locations.clear();
+            }
+            LOGGER.i("Scanned %dx%d in %d tiles, %d hits", decoder.getWidth(), decoder.getHeight(), tiles.size(), hits.size());
+            return nonMaxSuppression(hits);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Square tiles from the short side of the image down to the classifier input size, spread
+     * evenly so that each row and column of tiles spans the whole image.
+     */
+    static List<Rect> layoutTiles(int width, int height) {
+        final List<Rect> tiles = new ArrayList<>();
+        int size = Math.min(width, height);
+        for (int level = 0; level < MAX_LEVELS && size >= MSCognitiveServicesClassifier.INPUT_SIZE; level++) {
+            final int stride = Math.max(1, (int) (size * (1.f - OVERLAP)));
+            final int columns = (width - size + stride - 1) / stride + 1;
+            final int rows = (height - size + stride - 1) / stride + 1;
+            for (int r = 0; r < rows; r++) {
+                final int top = rows == 1 ? (height - size) / 2 : r * (height - size) / (rows - 1);
+                for (int c = 0; c < columns; c++) {
+                    final int left = columns == 1 ? (width - size) / 2 : c * (width - size) / (columns - 1);
+                    tiles.add(new Rect(left, top, left + size, top + size));
+                }
+            }
+            size /= 2;
+        }
+        return tiles;
+    }
+
+    /**
+     * @return the largest power of two that keeps the decoded tile at least the input size
+     */
+    private static int sampleSize(int tileSize) {
+        int sampleSize = 1;
+        while (tileSize / (sampleSize * 2) >= MSCognitiveServicesClassifier.INPUT_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Keeps the most confident recognition of every group of overlapping ones with the same label.
+     */
+    static List<Recognition> nonMaxSuppression(List<Recognition> hits) {
+        final List<Recognition> sorted = new ArrayList<>(hits);
+        Collections.sort(sorted, new Comparator<Recognition>() {
+            @Override public int compare(Recognition a, Recognition b) {
+                return Float.compare(b.getConfidence(), a.getConfidence());
+            }
+        });
+        final List<Recognition> kept = new ArrayList<>();
+        for (Recognition candidate : sorted) {
+            boolean suppressed = false;
+            for (Recognition k : kept) {
+                if (k.getTitle().equals(candidate.getTitle()) && iou(k.getLocation(), candidate.getLocation()) > NMS_IOU) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) {
+                kept.add(candidate);
+            }
+        }
+        return kept;
+    }
+
+    private static float iou(RectF a, RectF b) {
+        final float iw = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+        final float ih = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+        if (iw <= 0 || ih <= 0) {
+            return 0.f;
+        }
+        final float intersection = iw * ih;
+        return intersection / (a.width() * a.height() + b.width() * b.height() - intersection);
+    }
+}
@@ -0,0 +1,278 @@
+package pp.facerecognizer.connection;
+
+import android.content.ContentResolver;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import pp.facerecognizer.listener.BatchUploadCallback;
+
+/**
+ * Prepares the images of an upload in parallel and sends them in batches on a bounded pool.
+ * <p>
+ * The {@link ImagePreparer} works up to two batches ahead of the batch being assembled, and
+ * batches take the images in the order they finish, so a slow image holds back no others. No
+ * more than {@code parallelism} batches are in flight; assembling the next one waits for a slot.
+ * An image takes one of {@code maxHeldImages} permits before it is prepared and gives it back once
+ * its batch is sent or it is dropped, so the compressed images held in memory stay bounded.
+ * <p>
+ * A call is one attempt at the images of an {@link UploadJournal} not done yet. Compressed images
+ * are cached and journaled before they are sent and answers are journaled as they come, so a
+ * later attempt neither prepares nor sends an image again.
+ */
+class BatchUploader {
+
+    /**
+     * Most images Custom Vision accepts in one upload request.
+     */
+    static final int MAX_BATCH_SIZE = 64;
+
+    private final CustomVisionService service;
+    private final ImagePreparer preparer;
+    private final int batchSize;
+    private final int parallelism;
+    private final int maxHeldImages;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param maxHeldImages compressed images held at once, raised to one batch; 0 for one batch
+     *                      per request in flight
+     */
+    BatchUploader(CustomVisionService service, ImagePreparer preparer, int batchSize, int parallelism, int maxHeldImages) {
+        this.service = service;
+        this.preparer = preparer;
+        this.batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        this.parallelism = parallelism;
+        // Fewer than one batch could never be sent.
+        this.maxHeldImages = Math.max(this.batchSize, maxHeldImages > 0 ? maxHeldImages : this.batchSize * parallelism);
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Tries once to upload the images of {@code job} not done yet and waits for all batches.
+     * Images that failed for good are marked done, the others are left to the next attempt.
+     *
+     * @param fingerprints of the tag, receive the images it now holds; null to upload repeats
+     * @param progress     told about every answered batch, may be null
+     */
+    void upload(ContentResolver contentResolver, final UploadJournal job, final FingerprintIndex.Session fingerprints,
+                final BatchUploadCallback progress) throws InterruptedException {
+        final List<Integer> work = new ArrayList<>();
+        for (int i = 0; i < job.getUris().size(); i++) {
+            final byte state = job.getState(i);
+            if (state == UploadJournal.PENDING || state == UploadJournal.PREPARED) {
+                work.add(i);
+            }
+        }
+        final String[] tags = new String[] {job.getTagId()};
+        final int total = job.getUris().size();
+        final UploadReport report = new UploadReport(job.getUris());
+        final Semaphore slots = new Semaphore(parallelism);
+        final Semaphore held = new Semaphore(maxHeldImages);
+        final CompletionService<PreparedImage> prepared = new ExecutorCompletionService<>(preparer.getExecutor());
+        // Only those not taken yet, a finished future holds on to its compressed image.
+        final Set<Future<PreparedImage>> preparing = new HashSet<>();
+        final List<Future<?>> batches = new ArrayList<>();
+        final long startTime = SystemClock.uptimeMillis();
+        long preparedTime = 0;
+        try {
+            int submitted = 0;
+            int taken = 0;
+            while (taken < work.size()) {
+                final List<PreparedImage> batch = new ArrayList<>(batchSize);
+                final int first = taken;
+                while (taken - first < batchSize && taken < work.size()) {
+                    // Reads ahead as far as the permits allow, but always far enough for the next image.
+                    while (submitted < Math.min(work.size(), taken + 2 * batchSize) && held.tryAcquire()) {
+                        preparing.add(prepared.submit(task(contentResolver, job, work.get(submitted), fingerprints)));
+                        submitted++;
+                    }
+                    if (taken == submitted) {
+                        // The permits still out belong to batches in flight, which give them back.
+                        held.acquire();
+                        preparing.add(prepared.submit(task(contentResolver, job, work.get(submitted), fingerprints)));
+                        submitted++;
+                    }
+                    final Future<PreparedImage> done = prepared.take();
+                    preparing.remove(done);
+                    final PreparedImage image = get(done);
+                    taken++;
+                    // Duplicates are not sent, images that cannot be read will not be on a retry either.
+                    if (image != null && image.duplicate) {
+                        job.markDone(image.index, UploadReport.Status.DUPLICATE);
+                    } else if (image != null && image.data == null) {
+                        job.markDone(image.index, UploadReport.Status.FAILED);
+                    } else if (image != null) {
+                        batch.add(image);
+                        continue;
+                    }
+                    held.release();
+                }
+                if (taken == work.size()) {
+                    preparedTime = SystemClock.uptimeMillis() - startTime;
+                }
+                slots.acquire();
+                batches.add(executor.submit(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            if (!batch.isEmpty()) {
+                                send(tags, job, batch, report, fingerprints);
+                            }
+                        } finally {
+                            held.release(batch.size());
+                            slots.release();
+                        }
+                        if (progress != null) {
+                            progress.onUploadProgress(total - job.getRemaining(), total);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> batch : batches) {
+                try {
+                    batch.get();
+                } catch (ExecutionException e) {
+                    Log.e("CUSTOM_VISION", e.getMessage());
+                }
+            }
+        } finally {
+            for (Future<PreparedImage> image : preparing) {
+                image.cancel(true);
+            }
+            preparer.clear();
+        }
+        job.addBytesWritten(report.getBytesWritten());
+        final long totalTime = SystemClock.uptimeMillis() - startTime;
+        Log.i("CUSTOM_VISION", String.format(Locale.US,
+                "Prepared %d images in %dms (%.1f images/s), uploaded in %dms (%.1f images/s)",
+                work.size(), preparedTime, rate(work.size(), preparedTime), totalTime, rate(work.size(), totalTime)));
+    }
+
+    /**
+     * Sends one batch and journals the answer for each of its images. Images the service turned
+     * down for good are done; those a retry may get through stay pending.
+     */
+    private void send(String[] tags, UploadJournal job, List<PreparedImage> batch, UploadReport report,
+                      FingerprintIndex.Session fingerprints) {
+        final HttpResult result;
+        try {
+            result = service.uploadBatch(tags, job.getTag(), batch, job.getTransport(), report);
+        } catch (IOException e) {
+            Log.e("CUSTOM_VISION", "Batch of " + batch.size() + " images failed: " + e.getMessage());
+            job.noteError(0, 0);
+            return;
+        }
+        if (!result.isSuccessful()) {
+            job.noteError(result.code, result.retryAfterMillis);
+        }
+        for (PreparedImage image : batch) {
+            final UploadReport.Status status = report.getStatus(image.index);
+            if (status != UploadReport.Status.FAILED) {
+                job.markDone(image.index, status);
+                if (fingerprints != null) {
+                    fingerprints.commit(image.contentHash, image.perceptualHash);
+                }
+            } else if (!result.isRetryable()) {
+                job.markDone(image.index, status);
+            }
+        }
+    }
+
+    /**
+     * @return the compressed image of {@code index}, cached by an earlier attempt or prepared and
+     * cached now
+     */
+    private Callable<PreparedImage> task(final ContentResolver contentResolver, final UploadJournal job, final int index,
+                                         final FingerprintIndex.Session fingerprints) {
+        return new Callable<PreparedImage>() {
+            @Override public PreparedImage call() throws InterruptedException {
+                final File payload = job.getPayload(index);
+                final byte[] data = payload != null ? read(payload) : null;
+                if (data != null) {
+                    final long contentHash = job.getContentHash(index);
+                    final long perceptualHash = job.getPerceptualHash(index);
+                    // Claimed again, a new session does not know this upload's own images.
+                    if (fingerprints != null
+                            && !(fingerprints.claimContent(contentHash) && fingerprints.claimPerceptual(perceptualHash))) {
+                        return PreparedImage.duplicate(index);
+                    }
+                    return new PreparedImage(index, data, contentHash, perceptualHash);
+                }
+                final PreparedImage image = preparer.prepare(contentResolver, job.getUris().get(index), index, fingerprints);
+                if (image.data != null) {
+                    try {
+                        final File file = job.newPayloadFile(index);
+                        write(file, image.data);
+                        job.markPrepared(index, file, image.contentHash, image.perceptualHash);
+                    } catch (IOException e) {
+                        Log.e("CUSTOM_VISION", "Cannot cache image " + index + ": " + e.getMessage());
+                    }
+                }
+                return image;
+            }
+        };
+    }
+
+    /**
+     * @return the contents of {@code file}, null if it is gone or cannot be read
+     */
+    private static byte[] read(File file) {
+        final byte[] data = new byte[(int) file.length()];
+        if (data.length == 0) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                final int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static PreparedImage get(Future<PreparedImage> done) throws InterruptedException {
+        try {
+            return done.get();
+        } catch (ExecutionException e) {
+            Log.e("CUSTOM_VISION", "Image preparation failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static double rate(int images, long millis) {
+        return millis > 0 ? images * 1000.0 / millis : 0;
+    }
+}
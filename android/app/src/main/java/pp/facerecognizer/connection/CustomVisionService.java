@@ -2,38 +2,68 @@ package pp.facerecognizer.connection;
 
 import android.content.ContentResolver;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
+import android.util.Base64;
+import android.util.Base64OutputStream;
 import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import okhttp3.Headers;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
+import okhttp3.MultipartBody;
 import okhttp3.Request;
 import okhttp3.RequestBody;
-import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
 import pp.facerecognizer.R;
 import pp.facerecognizer.connection.model.Image;
+import pp.facerecognizer.connection.model.ImageCreateResult;
+import pp.facerecognizer.connection.model.ImageCreateSummary;
 import pp.facerecognizer.connection.model.ImageFileCreateBatch;
-import pp.facerecognizer.connection.model.ImageFileCreateEntry;
 import pp.facerecognizer.connection.model.Tag;
+import pp.facerecognizer.env.Benchmark;
 import pp.facerecognizer.listener.ImageDeleteCallback;
 import pp.facerecognizer.listener.ImageUploadCallback;
+import pp.facerecognizer.listener.ServiceCallback;
 
 public class CustomVisionService {
 
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    /**
+     * How {@link #createImagesFromFiles} sends the images.
+     */
+    public enum UploadTransport {
+        /**
+         * Base64 images in a JSON batch posted to {@code /images/files}.
+         */
+        JSON,
+        /**
+         * Raw image bytes as multipart form data posted to {@code /images}, tags in the query.
+         */
+        MULTIPART
+    }
+
     private final String CUSTOM_VISION_ENDPOINT = "https://southcentralus.api.cognitive.microsoft.com/customvision/v2.0/";
     private final String CREATE_IMAGES_FILES_ENDPOINT = "/images/files";
     private final String CREATE_IMAGES_URL_ENDPOINT = "/images/urls";
@@ -45,134 +75,389 @@ public class CustomVisionService {
     private String mBaseEndpoint;
     private String mTrainingKey;
     private String mProjectId;
-    private boolean successFlag;
-    private int lastResponseCode;
-    private boolean duplicates;
     private Gson mGson;
+    private HttpTransport mTransport;
+    private Headers mAuthHeaders;
+    private ExecutorService mExecutor;
     private Context mContext;
+    private UploadTransport mUploadTransport = UploadTransport.JSON;
+    private boolean mBenchmarkTransports;
+    private ImagePreparer mPreparer;
+    private FingerprintIndex mFingerprints;
+    private UploadScheduler mScheduler;
+    // Tags created by name, so an upload queued before the tag list is fetched again reuses them.
+    private final Map<String, String> mCreatedTags = new HashMap<>();
+
+    // One queue for the process, so an upload is never resumed twice, and the fingerprints it keeps.
+    private static UploadScheduler sScheduler;
+    private static FingerprintIndex sFingerprints;
+    // Runs the calls, as many at once as the transport lets through to the service.
+    private static ThreadPoolExecutor sExecutor;
 
     public CustomVisionService(String trainingKey, String projectId, Context context) {
         mProjectId = projectId;
         mTrainingKey = trainingKey;
         mBaseEndpoint = CUSTOM_VISION_ENDPOINT + "Training/projects/" + mProjectId;
         mGson = new Gson();
+        mTransport = HttpTransport.shared(Integer.parseInt(context.getString(R.string.HTTP_MAX_REQUESTS_PER_HOST)));
+        mAuthHeaders = new Headers.Builder()
+                .add("projectId", mProjectId)
+                .add("Training-Key", mTrainingKey)
+                .build();
         String maxImageSize = context.getString(R.string.MAX_IMAGE_SIZE);
         if (maxImageSize.length() > 0) {
             MAX_IMAGE_SIZE = Integer.parseInt(maxImageSize);
         }
         mContext = context;
+        String uploadTransport = context.getString(R.string.UPLOAD_TRANSPORT);
+        if (uploadTransport.length() > 0) {
+            mUploadTransport = UploadTransport.valueOf(uploadTransport);
+        }
+        mBenchmarkTransports = Boolean.parseBoolean(context.getString(R.string.BENCHMARK_UPLOAD_TRANSPORTS));
+        String maxDecodedBitmaps = context.getString(R.string.UPLOAD_MAX_DECODED_BITMAPS);
+        mPreparer = new ImagePreparer(Integer.parseInt(context.getString(R.string.MAX_IMAGE_DIMENSION)), MAX_IMAGE_SIZE * 1024,
+                maxDecodedBitmaps.length() > 0 ? Integer.parseInt(maxDecodedBitmaps) : 0);
+        synchronized (CustomVisionService.class) {
+            if (sScheduler == null) {
+                sFingerprints = new FingerprintIndex(new File(context.getFilesDir(), "fingerprints"));
+                String maxHeldImages = context.getString(R.string.UPLOAD_MAX_HELD_IMAGES);
+                BatchUploader uploader = new BatchUploader(this, mPreparer, Integer.parseInt(context.getString(R.string.UPLOAD_BATCH_SIZE)),
+                        Integer.parseInt(context.getString(R.string.UPLOAD_PARALLELISM)),
+                        maxHeldImages.length() > 0 ? Integer.parseInt(maxHeldImages) : 0);
+                sScheduler = new UploadScheduler(uploader, sFingerprints, context.getApplicationContext().getContentResolver(),
+                        new File(context.getFilesDir(), "uploads"), new File(context.getCacheDir(), "uploads"),
+                        Integer.parseInt(context.getString(R.string.UPLOAD_MAX_ATTEMPTS)));
+                sScheduler.resumePending();
+                int threads = Integer.parseInt(context.getString(R.string.HTTP_MAX_REQUESTS_PER_HOST));
+                sExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+                sExecutor.allowCoreThreadTimeOut(true);
+            }
+            mScheduler = sScheduler;
+            mFingerprints = sFingerprints;
+            mExecutor = sExecutor;
+        }
+        final String benchmarkHttpUrl = context.getString(R.string.BENCHMARK_HTTP_URL);
+        if (benchmarkHttpUrl.length() > 0) {
+            mExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    mTransport.benchmarkConnectionReuse(benchmarkHttpUrl, 10);
+                }
+            });
+        }
     }
 
-    public Tag[] getTags() {
-        try {
-            String endpoint = mBaseEndpoint + TAG_ENDPOINT;
-            String body = makeRequest(endpoint, null, false);
-            return mGson.fromJson(body, Tag[].class);
-        } catch (IOException | JsonSyntaxException e) {
-            Log.e("CUSTOM_VISION", e.getMessage());
-        }
-        return null;
+    /**
+     * Fetches the tags of the project.
+     */
+    public Future<ServiceResult<Tag[]>> getTags(ServiceCallback<Tag[]> callback) {
+        return submit(new Callable<ServiceResult<Tag[]>>() {
+            @Override public ServiceResult<Tag[]> call() {
+                return request(mBaseEndpoint + TAG_ENDPOINT, null, false, Tag[].class);
+            }
+        }, callback);
     }
 
-    public String createTag(String tagName) {
-        String tagId = "";
-        try {
-            String endpoint = mBaseEndpoint + TAG_ENDPOINT + "?name=" + tagName;
-            String body = makeRequest(endpoint, "", false);
-            Tag tag = mGson.fromJson(body, Tag.class);
-            tagId = tag.getId();
-        } catch (IOException e) {
-            Log.e("CUSTOM_VISION", e.getMessage());
-        }
-        return tagId;
+    /**
+     * Creates a tag, the result carries its id.
+     */
+    public Future<ServiceResult<String>> createTag(final String tagName, ServiceCallback<String> callback) {
+        return submit(new Callable<ServiceResult<String>>() {
+            @Override public ServiceResult<String> call() {
+                return postTag(tagName);
+            }
+        }, callback);
     }
 
-    public Image[] getImagesByTagId(String tagId) {
-        try {
-            String endpoint = mBaseEndpoint + GET_TAGGED_IMAGES_ENDPOINT + "?tagIds=" + "[\"" + tagId + "\"]";
-            String body = makeRequest(endpoint, null, false);
-            return mGson.fromJson(body, Image[].class);
-        } catch (IOException e) {
-            Log.e("CUSTOM_VISION", e.getMessage());
-        }
-        return null;
+    public Future<ServiceResult<Image[]>> getImagesByTagId(final String tagId, ServiceCallback<Image[]> callback) {
+        return submit(new Callable<ServiceResult<Image[]>>() {
+            @Override public ServiceResult<Image[]> call() {
+                return imagesByTagId(tagId);
+            }
+        }, callback);
     }
 
-    public void deleteImages(Image[] images) {
-        String endpoint = mBaseEndpoint + IMAGES_ENDPOINT + "?";
-        try {
-            for (Image image : images) {
-                endpoint += "imageIds=" + image.getId() + "&";
+    public Future<ServiceResult<Void>> deleteImages(final Image[] images, ServiceCallback<Void> callback) {
+        return submit(new Callable<ServiceResult<Void>>() {
+            @Override public ServiceResult<Void> call() {
+                return removeImages(images);
             }
-            endpoint = endpoint.substring(0, endpoint.length() - 1);
-            makeRequest(endpoint, null, true);
-        } catch (IOException e) {
-            Log.e("CUSTOM_VISION", e.getMessage());
+        }, callback);
+    }
+
+    /**
+     * Deletes the images of a tag, then the tag. The result fails with the code of the first call
+     * that did, the following ones are made all the same. The fingerprints of the tag are only
+     * forgotten once everything is deleted.
+     */
+    public Future<ServiceResult<Void>> deleteTagAndItsImages(final String tagId, final ImageDeleteCallback imageDeleteCallback) {
+        return submit(new Callable<ServiceResult<Void>>() {
+            @Override public ServiceResult<Void> call() {
+                ServiceResult<Image[]> taggedImages = imagesByTagId(tagId);
+                ServiceResult<?> failed = taggedImages.isSuccessful() ? null : taggedImages;
+                if (taggedImages.getValue() != null && taggedImages.getValue().length > 0) {
+                    ServiceResult<Void> deleted = removeImages(taggedImages.getValue());
+                    failed = failed == null && !deleted.isSuccessful() ? deleted : failed;
+                }
+                ServiceResult<Void> deleted = request(mBaseEndpoint + TAG_ENDPOINT + "/" + tagId, null, true, Void.class);
+                failed = failed == null && !deleted.isSuccessful() ? deleted : failed;
+                ServiceResult<Void> result = failed == null ? deleted : ServiceResult.<Void>failed(failed.getResponseCode());
+                if (result.isSuccessful()) {
+                    // Kept while the tag may still hold images, so they are still not uploaded twice.
+                    mFingerprints.remove(tagId);
+                    synchronized (mCreatedTags) {
+                        mCreatedTags.values().remove(tagId);
+                    }
+                }
+                if (imageDeleteCallback != null) {
+                    if (result.isSuccessful()) {
+                        imageDeleteCallback.onImagesDeleted();
+                    } else {
+                        imageDeleteCallback.onDeleteFailure(result.getResponseCode());
+                    }
+                }
+                return result;
+            }
+        }, null);
+    }
+
+    public Future<UploadReport> createImagesFromFiles(ContentResolver contentResolver, String tagId, String tag, ArrayList<Uri> uris,
+                                                      ImageUploadCallback imageUploadCallback) {
+        return createImagesFromFiles(contentResolver, tagId, tag, uris, mUploadTransport, imageUploadCallback, null);
+    }
+
+    /**
+     * @param tagCallback told the id of the tag as soon as it is created, before any image is sent
+     */
+    public Future<UploadReport> createImagesFromFiles(ContentResolver contentResolver, String tagId, String tag, ArrayList<Uri> uris,
+                                                      ImageUploadCallback imageUploadCallback, ServiceCallback<String> tagCallback) {
+        return createImagesFromFiles(contentResolver, tagId, tag, uris, mUploadTransport, imageUploadCallback, tagCallback);
+    }
+
+    /**
+     * Creates the tag if {@code tagId} is empty and queues the upload, without waiting for either.
+     *
+     * @param tagCallback told the id of the tag as soon as it is created, may be null
+     * @return the report of the upload, once every image is done or its attempts ran out
+     */
+    public Future<UploadReport> createImagesFromFiles(final ContentResolver contentResolver, final String tagId, final String tag,
+                                                      final ArrayList<Uri> uris, final UploadTransport transport,
+                                                      final ImageUploadCallback imageUploadCallback,
+                                                      final ServiceCallback<String> tagCallback) {
+        final UploadFuture future = new UploadFuture();
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                String id = tagId;
+                if (id.length() == 0) {
+                    ServiceResult<String> created = postTag(tag);
+                    if (tagCallback != null) {
+                        tagCallback.onResult(created);
+                    }
+                    if (!created.isSuccessful()) {
+                        future.fail(new IOException("Cannot create tag " + tag + ": " + created.getResponseCode()));
+                        if (imageUploadCallback != null) {
+                            imageUploadCallback.onUploadFailure(created.getResponseCode(), false);
+                        }
+                        return;
+                    }
+                    id = created.getValue();
+                }
+                if (mBenchmarkTransports) {
+                    benchmarkUploadTransports(contentResolver, new String[] {id}, tag, uris, 3);
+                }
+                try {
+                    mScheduler.enqueue(id, tag, uris, transport, imageUploadCallback, future);
+                } catch (IOException e) {
+                    Log.e("CUSTOM_VISION", "Cannot queue the upload: " + e.getMessage());
+                    future.fail(e);
+                    if (imageUploadCallback != null) {
+                        imageUploadCallback.onUploadFailure(0, false);
+                    }
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Creates the tag, or answers with the one created under that name before. Creations are
+     * serialized, so two uploads for a new name do not both create it.
+     */
+    private ServiceResult<String> postTag(String tagName) {
+        synchronized (mCreatedTags) {
+            final String created = mCreatedTags.get(tagName);
+            if (created != null) {
+                return new ServiceResult<>(created, 200, true);
+            }
+            ServiceResult<Tag> tag = request(mBaseEndpoint + TAG_ENDPOINT + "?name=" + tagName, RequestBody.create(JSON, ""), false, Tag.class);
+            if (!tag.isSuccessful() || tag.getValue() == null) {
+                return ServiceResult.failed(tag.getResponseCode());
+            }
+            mCreatedTags.put(tagName, tag.getValue().getId());
+            return new ServiceResult<>(tag.getValue().getId(), tag.getResponseCode(), true);
         }
     }
 
-    public void deleteTag(String tagId) {
-        try {
-            String endpoint = mBaseEndpoint + TAG_ENDPOINT + "/" + tagId;
-            makeRequest(endpoint, null, true);
-        } catch (IOException e) {
-            Log.e("CUSTOM_VISION", e.getMessage());
+    private ServiceResult<Image[]> imagesByTagId(String tagId) {
+        return request(mBaseEndpoint + GET_TAGGED_IMAGES_ENDPOINT + "?tagIds=" + "[\"" + tagId + "\"]", null, false, Image[].class);
+    }
+
+    private ServiceResult<Void> removeImages(Image[] images) {
+        String endpoint = mBaseEndpoint + IMAGES_ENDPOINT + "?";
+        for (Image image : images) {
+            endpoint += "imageIds=" + image.getId() + "&";
         }
+        return request(endpoint.substring(0, endpoint.length() - 1), null, true, Void.class);
     }
 
-    public void deleteTagAndItsImages(String tagId, ImageDeleteCallback imageDeleteCallback) {
-        successFlag = true;
-        Image[] taggedImages = getImagesByTagId(tagId);
+    /**
+     * Runs {@code operation} on the service pool and hands its result to {@code callback} too.
+     */
+    private <T> Future<ServiceResult<T>> submit(final Callable<ServiceResult<T>> operation, final ServiceCallback<T> callback) {
+        return mExecutor.submit(new Callable<ServiceResult<T>>() {
+            @Override public ServiceResult<T> call() throws Exception {
+                ServiceResult<T> result = operation.call();
+                if (callback != null) {
+                    callback.onResult(result);
+                }
+                return result;
+            }
+        });
+    }
 
-        if (taggedImages != null && taggedImages.length > 0) {
-            deleteImages(taggedImages);
+    /**
+     * Uploads {@code batch} in one request and records the outcome of each image in
+     * {@code report}. Safe to call concurrently, nothing is shared with other calls.
+     *
+     * @return the answer of the service, telling whether a failed batch is worth retrying
+     */
+    HttpResult uploadBatch(String[] tags, String tag, List<PreparedImage> batch, UploadTransport transport,
+                           UploadReport report) throws IOException {
+        ByteCountingBody body = new ByteCountingBody(createUploadBody(tags, tag, batch, transport));
+        HttpResult result = execute(getUploadEndpoint(tags, transport), body, false);
+        report.addBytesWritten(body.written);
+
+        ImageCreateSummary summary = null;
+        try {
+            summary = mGson.fromJson(result.body, ImageCreateSummary.class);
+        } catch (JsonSyntaxException e) {
+            Log.e("CUSTOM_VISION", result.body);
+        }
+        boolean accepted = result.isSuccessful() && summary != null && summary.isBatchSuccessful();
+        if (!accepted) {
+            Log.e("CUSTOM_VISION", result.body);
+            report.setErrorCode(result.code);
+        }
+        // Images the summary does not mention share the outcome of the batch.
+        for (PreparedImage image : batch) {
+            report.setStatus(image.index, accepted ? UploadReport.Status.UPLOADED : UploadReport.Status.FAILED);
+        }
+        if (summary == null || summary.getImages() == null) {
+            return result;
+        }
+        Map<String, Integer> indexByName = new HashMap<>();
+        for (PreparedImage image : batch) {
+            indexByName.put(imageName(tag, image.index), image.index);
         }
-        deleteTag(tagId);
-        if (imageDeleteCallback != null) {
-            if (successFlag) {
-                imageDeleteCallback.onImagesDeleted();
+        for (ImageCreateResult image : summary.getImages()) {
+            Integer index = indexByName.get(image.getSourceUrl());
+            if (index == null) {
+                continue;
+            }
+            if (ImageCreateResult.STATUS_OK.equals(image.getStatus())) {
+                report.setStatus(index, UploadReport.Status.UPLOADED);
+            } else if (ImageCreateResult.STATUS_DUPLICATE.equals(image.getStatus())) {
+                report.setStatus(index, UploadReport.Status.DUPLICATE);
             } else {
-                imageDeleteCallback.onDeleteFailure(lastResponseCode);
+                report.setStatus(index, UploadReport.Status.FAILED);
             }
         }
+        return result;
+    }
+
+    private static String imageName(String tag, int index) {
+        return tag + "" + index + ".png";
+    }
+
+    private String getUploadEndpoint(String[] tags, UploadTransport transport) {
+        if (transport == UploadTransport.JSON) {
+            return mBaseEndpoint + CREATE_IMAGES_FILES_ENDPOINT;
+        }
+        HttpUrl.Builder urlBuilder = HttpUrl.parse(mBaseEndpoint + IMAGES_ENDPOINT).newBuilder();
+        for (String tagId : tags) {
+            urlBuilder.addQueryParameter("tagIds", tagId);
+        }
+        return urlBuilder.build().toString();
     }
 
-    public void createImagesFromFiles(ContentResolver contentResolver, String tagId, String tag, ArrayList<Uri> uris, ImageUploadCallback imageUploadCallback) {
-        if (tagId.length() == 0) {
-            tagId = createTag(tag);
+    private RequestBody createUploadBody(String[] tags, String tag, List<PreparedImage> images, UploadTransport transport) {
+        if (transport == UploadTransport.JSON) {
+            return new ImageFileBatchBody(tags, tag, images);
+        }
+        MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        for (PreparedImage image : images) {
+            builder.addFormDataPart("imageData", imageName(tag, image.index), RequestBody.create(OCTET_STREAM, image.data));
         }
-        ImageFileCreateBatch imageFileCreateBatch;
-        String[] tags = new String[1];
-        tags[0] = tagId;
-        ImageFileCreateEntry[] images = new ImageFileCreateEntry[uris.size()];
-        int i = 0;
+        return builder.build();
+    }
 
+    /**
+     * Prepares the images once, then produces the upload body of every transport into a sink that
+     * only counts, and logs the bytes each one puts on the wire and the time it takes to write
+     * them. Nothing is sent.
+     */
+    public void benchmarkUploadTransports(final ContentResolver contentResolver, final String[] tags, final String tag,
+                                          final List<Uri> uris, int iterations) {
+        final List<PreparedImage> images = new ArrayList<>(uris.size());
         try {
-            for (Uri uri : uris) {
-                Bitmap bitmap = getBitmapFromUri(contentResolver, uri);
-                String imageContents = this.convertBitmapToB64String(bitmap);
-                ImageFileCreateEntry imageFileCreateEntry = new ImageFileCreateEntry(tag + "" + i + ".png", imageContents);
-                images[i] = imageFileCreateEntry;
-                i++;
-            }
-
-            imageFileCreateBatch = new ImageFileCreateBatch(tags, images);
-            String endpoint = mBaseEndpoint + CREATE_IMAGES_FILES_ENDPOINT;
-            successFlag = true;
-            makeRequest(endpoint, mGson.toJson(imageFileCreateBatch), false);
-            if (imageUploadCallback != null) {
-                if (successFlag) {
-                    imageUploadCallback.onUploadSuccess();
-                } else {
-                    imageUploadCallback.onUploadFailure(lastResponseCode, duplicates);
+            for (int i = 0; i < uris.size(); i++) {
+                PreparedImage image = mPreparer.prepare(contentResolver, uris.get(i), i, null);
+                if (image.data != null) {
+                    images.add(image);
                 }
             }
-        } catch (Exception e) {
-            Log.e("CUSTOM_VISION", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            mPreparer.clear();
+        }
+        for (final UploadTransport transport : UploadTransport.values()) {
+            final ByteCountingBody body = new ByteCountingBody(createUploadBody(tags, tag, images, transport));
+            try {
+                Benchmark.Result result = Benchmark.measure(transport.toString(), 0, iterations, new Benchmark.Task() {
+                    @Override public void run() throws Exception {
+                        body.written = 0;
+                        BufferedSink discard = Okio.buffer(Okio.sink(new ByteCounter()));
+                        body.writeTo(discard);
+                        discard.close();
+                    }
+                });
+                Log.i("CUSTOM_VISION", String.format("%s: %d images, %d bytes", result, images.size(), body.written));
+            } catch (Exception e) {
+                Log.e("CUSTOM_VISION", "Upload benchmark failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Makes one call and parses its answer as {@code type}, nothing about it outlives the call.
+     */
+    private <T> ServiceResult<T> request(String endpoint, RequestBody bodyOrNull, boolean delete, Class<T> type) {
+        try {
+            HttpResult result = execute(endpoint, bodyOrNull, delete);
+            if (!result.isSuccessful()) {
+                Log.e("CUSTOM_VISION", result.body);
+                return ServiceResult.failed(result.code);
+            }
+            T value = type == Void.class ? null : mGson.fromJson(result.body, type);
+            return new ServiceResult<>(value, result.code, true);
+        } catch (IOException | JsonSyntaxException e) {
+            Log.e("CUSTOM_VISION", String.valueOf(e.getMessage()));
+            return ServiceResult.failed(0);
         }
     }
 
-    private String makeRequest(String endpoint, String bodyOrNull, boolean delete) throws IOException, NullPointerException {
+    private HttpResult execute(String endpoint, RequestBody bodyOrNull, boolean delete) throws IOException, NullPointerException {
         HttpUrl.Builder urlBuilder = HttpUrl.parse(endpoint).newBuilder();
         String url = urlBuilder.build().toString();
         Request.Builder requestBuilder = new Request.Builder()
@@ -183,61 +468,95 @@ public class CustomVisionService {
                     .delete()
                     .addHeader("Content-Type", "application/json");
         } else if (bodyOrNull != null) {
-            RequestBody requestBody = RequestBody.create(MediaType.parse("application/json"), bodyOrNull);
             requestBuilder
-                    .post(requestBody)
+                    .post(bodyOrNull)
                     .addHeader("Content-Type", "application/json");
         }
-        Request request = requestBuilder
-                .addHeader("projectId", mProjectId)
-                .addHeader("Training-Key", mTrainingKey)
-                .build();
-        OkHttpClient client = new OkHttpClient();
-        Response response = client.newCall(request).execute();
-        String responseBody = response.body().string();
-        lastResponseCode = response.code();
-        duplicates = false;
-        if (!response.isSuccessful() || (lastResponseCode != 200 && lastResponseCode != 204 && lastResponseCode != 404) || responseBody.contains("isBatchSuccessful\":false")) {
-            Log.e("CUSTOM_VISION", responseBody);
-            if (responseBody.contains("status\":\"OKDuplicate")) {
-                duplicates = true;
-            }
-            successFlag = false;
+        for (int i = 0; i < mAuthHeaders.size(); i++) {
+            requestBuilder.addHeader(mAuthHeaders.name(i), mAuthHeaders.value(i));
         }
-        return responseBody;
+        return mTransport.execute(requestBuilder.build());
     }
-    private Bitmap getBitmapFromUri(ContentResolver contentResolver, Uri uri) throws Exception {
-        ParcelFileDescriptor parcelFileDescriptor = contentResolver.openFileDescriptor(uri, "r");
-        FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-        Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-        parcelFileDescriptor.close();
-        return bitmap;
+    /**
+     * Counts the bytes written to it and drops them, a sink for benchmarks.
+     */
+    private static class ByteCounter extends OutputStream {
+        long count;
+
+        @Override public void write(int b) {
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            count += len;
+        }
     }
 
-    private String convertBitmapToB64String(Bitmap image) {
-        try {
-            File testFile = new File(mContext.getCacheDir(), "TEST.PNG");
-            FileOutputStream fileOutputStream = new FileOutputStream(testFile);
-            image.compress(Bitmap.CompressFormat.JPEG, 100 /*ignored for PNG*/, fileOutputStream);
-            fileOutputStream.close();
-            long sizeInKB = testFile.length() / 1024;
-            testFile.delete();
-            if (sizeInKB > MAX_IMAGE_SIZE) {
-                double scaleCoef = (MAX_IMAGE_SIZE * 1.0) / sizeInKB;
-                int scaledQuality = (int) (100 * scaleCoef);
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                image.compress(Bitmap.CompressFormat.JPEG, scaledQuality /*ignored for PNG*/, byteArrayOutputStream);
-                byte[] bitmapData = byteArrayOutputStream.toByteArray();
-                byteArrayOutputStream.close();
-                return android.util.Base64.encodeToString(bitmapData, android.util.Base64.DEFAULT);
-            }
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            image.compress(Bitmap.CompressFormat.PNG, 0 /*ignored for PNG*/, byteArrayOutputStream);
-            byte[] bitmapData = byteArrayOutputStream.toByteArray();
-            byteArrayOutputStream.close();
-            return android.util.Base64.encodeToString(bitmapData, android.util.Base64.DEFAULT);
-        } catch (Exception e) {
-            return "";
+    /**
+     * Counts the bytes another body writes, framing included.
+     */
+    private static class ByteCountingBody extends RequestBody {
+        private final RequestBody delegate;
+        long written;
+
+        ByteCountingBody(RequestBody delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink counting = Okio.buffer(new ForwardingSink(sink) {
+                @Override public void write(Buffer source, long byteCount) throws IOException {
+                    written += byteCount;
+                    super.write(source, byteCount);
+                }
+            });
+            delegate.writeTo(counting);
+            counting.emit();
+        }
+    }
+
+    /**
+     * Writes the JSON of an {@link ImageFileCreateBatch} from prepared images, each one
+     * base64-encoded straight into the connection, so the batch never exists as a string.
+     */
+    private class ImageFileBatchBody extends RequestBody {
+        private final String[] tagIds;
+        private final String tag;
+        private final List<PreparedImage> images;
+
+        ImageFileBatchBody(String[] tagIds, String tag, List<PreparedImage> images) {
+            this.tagIds = tagIds;
+            this.tag = tag;
+            this.images = images;
+        }
+
+        @Override public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override public void writeTo(BufferedSink sink) throws IOException {
+            sink.writeUtf8("{\"tagIds\":").writeUtf8(mGson.toJson(tagIds)).writeUtf8(",\"images\":[");
+            for (int i = 0; i < images.size(); i++) {
+                if (i > 0) {
+                    sink.writeByte(',');
+                }
+                PreparedImage image = images.get(i);
+                sink.writeUtf8("{\"name\":").writeUtf8(mGson.toJson(imageName(tag, image.index))).writeUtf8(",\"contents\":\"");
+                // Base64 without line breaks needs no escaping inside the JSON string.
+                Base64OutputStream contents = new Base64OutputStream(sink.outputStream(), Base64.NO_WRAP | Base64.NO_CLOSE);
+                contents.write(image.data);
+                contents.close();
+                sink.writeUtf8("\"}");
+            }
+            sink.writeUtf8("]}");
         }
     }
 }
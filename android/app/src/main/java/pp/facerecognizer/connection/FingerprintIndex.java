@@ -0,0 +1,203 @@
+package pp.facerecognizer.connection;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import pp.facerecognizer.env.PerceptualHash;
+
+/**
+ * Fingerprints of the images already uploaded to each {@link pp.facerecognizer.connection.model.Tag},
+ * so repeats are skipped before they are decoded, encoded or sent.
+ * <p>
+ * A fingerprint is a hash of the file contents, which catches the same file picked again, and a
+ * {@link PerceptualHash#dHash} of the decoded image, which catches re-saved or re-scaled copies.
+ * Every tag has its own file under {@code dir}, a header followed by one 16 byte record per image,
+ * appended as uploads succeed and deleted with the tag. A torn last record is cut off.
+ */
+class FingerprintIndex {
+
+    private static final int MAGIC = 0x46505249; // "FPRI"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".fp";
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 16;
+
+    /**
+     * Largest Hamming distance between the perceptual hashes of two images taken as the same.
+     */
+    static final int NEAR_DUPLICATE_DISTANCE = 4;
+
+    private final File dir;
+    private final Map<String, Fingerprints> loaded = new HashMap<>();
+
+    private static class Fingerprints {
+        final Set<Long> contents = new HashSet<>();
+        long[] perceptual = new long[16];
+        int size;
+
+        boolean containsNear(long hash) {
+            for (int i = 0; i < size; i++) {
+                if (PerceptualHash.hammingDistance(hash, perceptual[i]) <= NEAR_DUPLICATE_DISTANCE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long content, long hash) {
+            contents.add(content);
+            addPerceptual(hash);
+        }
+
+        void addPerceptual(long hash) {
+            if (size == perceptual.length) {
+                final long[] grown = new long[size * 2];
+                System.arraycopy(perceptual, 0, grown, 0, size);
+                perceptual = grown;
+            }
+            perceptual[size++] = hash;
+        }
+    }
+
+    FingerprintIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Starts checking the images of one upload to {@code tagId}.
+     */
+    Session begin(String tagId) {
+        return new Session(tagId);
+    }
+
+    /**
+     * Forgets the fingerprints of a deleted tag.
+     */
+    synchronized void remove(String tagId) {
+        loaded.remove(tagId);
+        final File file = fileOf(tagId);
+        if (file.exists() && !file.delete()) {
+            Log.e("CUSTOM_VISION", "Cannot delete " + file);
+        }
+    }
+
+    /**
+     * The images of one upload. Each check also claims the image, so a repeat within the same
+     * upload is caught as well; claims only reach the index through {@link #commit}.
+     */
+    class Session {
+        private final String tagId;
+        private final Fingerprints claimed = new Fingerprints();
+
+        private Session(String tagId) {
+            this.tagId = tagId;
+        }
+
+        /**
+         * @return false if a file with these contents was uploaded or claimed before
+         */
+        boolean claimContent(long content) {
+            synchronized (FingerprintIndex.this) {
+                return !fingerprintsOf(tagId).contents.contains(content) && claimed.contents.add(content);
+            }
+        }
+
+        /**
+         * @return false if a visually identical image was uploaded or claimed before
+         */
+        boolean claimPerceptual(long hash) {
+            synchronized (FingerprintIndex.this) {
+                if (fingerprintsOf(tagId).containsNear(hash) || claimed.containsNear(hash)) {
+                    return false;
+                }
+                claimed.addPerceptual(hash);
+                return true;
+            }
+        }
+
+        /**
+         * Records an image the service now holds, in memory and on disk.
+         */
+        void commit(long content, long hash) {
+            synchronized (FingerprintIndex.this) {
+                fingerprintsOf(tagId).add(content, hash);
+                try {
+                    append(tagId, content, hash);
+                } catch (IOException e) {
+                    Log.e("CUSTOM_VISION", "Cannot save the fingerprint of an image: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private File fileOf(String tagId) {
+        return new File(dir, tagId + SUFFIX);
+    }
+
+    private Fingerprints fingerprintsOf(String tagId) {
+        Fingerprints fingerprints = loaded.get(tagId);
+        if (fingerprints == null) {
+            fingerprints = new Fingerprints();
+            try {
+                read(fileOf(tagId), fingerprints);
+            } catch (IOException e) {
+                Log.e("CUSTOM_VISION", "Cannot read the fingerprints of " + tagId + ": " + e.getMessage());
+            }
+            loaded.put(tagId, fingerprints);
+        }
+        return fingerprints;
+    }
+
+    private static void read(File file, Fingerprints fingerprints) throws IOException {
+        final long length = file.length();
+        if (length < HEADER_SIZE) {
+            // Missing, or a header a crash left half written.
+            file.delete();
+            return;
+        }
+        final long records = Math.max(0, (length - HEADER_SIZE) / RECORD_SIZE);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a fingerprint file: " + file);
+            }
+            for (long r = 0; r < records; r++) {
+                fingerprints.add(in.readLong(), in.readLong());
+            }
+        }
+        if (length != HEADER_SIZE + records * RECORD_SIZE) {
+            // Cut off the record a crash left half written, so the next one lines up.
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(HEADER_SIZE + records * RECORD_SIZE);
+            }
+        }
+    }
+
+    private void append(String tagId, long content, long hash) throws IOException {
+        final File file = fileOf(tagId);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        final boolean created = !file.exists();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (created) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            out.writeLong(content);
+            out.writeLong(hash);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package pp.facerecognizer.connection;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import okhttp3.Response;
+
+/**
+ * Status and body of one call, read off the connection so it can go back to the pool.
+ */
+class HttpResult {
+    final int code;
+    final String body;
+    /**
+     * How long the service asked to wait before the next request, -1 if it did not say.
+     */
+    final long retryAfterMillis;
+
+    HttpResult(int code, String body, long retryAfterMillis) {
+        this.code = code;
+        this.body = body;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    static HttpResult read(Response response) throws IOException {
+        try {
+            return new HttpResult(response.code(), response.body().string(), parseRetryAfter(response.header("Retry-After")));
+        } finally {
+            response.close();
+        }
+    }
+
+    boolean isSuccessful() {
+        return code == 200 || code == 204;
+    }
+
+    /**
+     * @return whether the same request may succeed later: throttled, timed out or a server error
+     */
+    boolean isRetryable() {
+        return code == 429 || code == 408 || code >= 500;
+    }
+
+    /**
+     * @return the wait a {@code Retry-After} header asks for, in seconds or as a date, -1 if none
+     */
+    private static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, an HTTP date then.
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(value.trim()).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package pp.facerecognizer.connection;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import pp.facerecognizer.env.Benchmark;
+
+/**
+ * The one HTTP client of the app, shared by {@link CustomVisionService} and {@link VstsService}.
+ * <p>
+ * Connections are kept alive in a pool and, where the server speaks HTTP/2, multiplexed, so only
+ * the first call to a host pays for the TCP and TLS handshakes. No more than
+ * {@code maxRequestsPerHost} calls run against one host at once; the others wait for a slot
+ * instead of opening more connections the service would throttle anyway.
+ */
+class HttpTransport {
+
+    private static final int CONNECT_TIMEOUT_S = 15;
+    // Long enough for a batch of 64 images over a slow uplink.
+    private static final int READ_WRITE_TIMEOUT_S = 60;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final int KEEP_ALIVE_MINUTES = 5;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    private static HttpTransport sShared;
+
+    private final OkHttpClient client;
+    private final int maxRequestsPerHost;
+    private final Map<String, Semaphore> hostSlots = new HashMap<>();
+
+    private HttpTransport(int maxRequestsPerHost) {
+        this.client = newClient(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES));
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    /**
+     * @param maxRequestsPerHost calls in flight to one host, only the first caller's value counts
+     */
+    static synchronized HttpTransport shared(int maxRequestsPerHost) {
+        if (sShared == null) {
+            sShared = new HttpTransport(maxRequestsPerHost > 0 ? maxRequestsPerHost : DEFAULT_MAX_REQUESTS_PER_HOST);
+        }
+        return sShared;
+    }
+
+    private static OkHttpClient newClient(ConnectionPool pool) {
+        return new OkHttpClient.Builder()
+                .connectionPool(pool)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(CONNECT_TIMEOUT_S, TimeUnit.SECONDS)
+                .readTimeout(READ_WRITE_TIMEOUT_S, TimeUnit.SECONDS)
+                .writeTimeout(READ_WRITE_TIMEOUT_S, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    /**
+     * Runs {@code request} once a slot of its host is free and reads the whole answer.
+     */
+    HttpResult execute(Request request) throws IOException {
+        final Semaphore slots = slotsOf(request.url().host());
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + request.url().host());
+        }
+        try {
+            return HttpResult.read(client.newCall(request).execute());
+        } finally {
+            slots.release();
+        }
+    }
+
+    private synchronized Semaphore slotsOf(String host) {
+        Semaphore slots = hostSlots.get(host);
+        if (slots == null) {
+            slots = new Semaphore(maxRequestsPerHost);
+            hostSlots.put(host, slots);
+        }
+        return slots;
+    }
+
+    /**
+     * Logs the latency of GETting {@code url} with a client of its own per call, paying every
+     * handshake as the services used to, and through the shared pool. Point it at a mock server
+     * on the local network to see the handshakes apart from the service time.
+     */
+    void benchmarkConnectionReuse(final String url, int iterations) {
+        final Request request = new Request.Builder().url(url).build();
+        try {
+            Benchmark.Result cold = Benchmark.measure("New client per call", 0, iterations, new Benchmark.Task() {
+                @Override public void run() throws Exception {
+                    ConnectionPool pool = new ConnectionPool();
+                    newClient(pool).newCall(request).execute().close();
+                    pool.evictAll();
+                }
+            });
+            Benchmark.Result pooled = Benchmark.measure("Shared pool", 1, iterations, new Benchmark.Task() {
+                @Override public void run() throws Exception {
+                    execute(request);
+                }
+            });
+            Log.i("HTTP", cold.toString());
+            Log.i("HTTP", pooled.toString());
+        } catch (Exception e) {
+            Log.e("HTTP", "Transport benchmark failed: " + e.getMessage());
+        }
+    }
+}
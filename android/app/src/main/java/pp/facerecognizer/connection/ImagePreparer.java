@@ -0,0 +1,150 @@
+package pp.facerecognizer.connection;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import pp.facerecognizer.env.BitmapDecoder;
+import pp.facerecognizer.env.JpegEncoder;
+import pp.facerecognizer.env.PerceptualHash;
+
+/**
+ * Decodes and compresses upload images on one worker per core.
+ * <p>
+ * Each image is decoded, compressed and its bitmap returned to the pool within one task. An
+ * optional limit on the decoded bitmaps alive at once keeps the working set down on devices with
+ * many cores and little memory: tasks beyond it wait before decoding. Given the fingerprints of
+ * an upload, a task drops a duplicate image before doing any work it does not need.
+ */
+class ImagePreparer {
+
+    // Side of the thumbnail the perceptual hash is taken from.
+    private static final int HASH_SIZE = 64;
+
+    private final BitmapDecoder decoder;
+    private final JpegEncoder encoder;
+    private final int maxDimension;
+    private final Semaphore decodedBitmaps;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param maxDimension      longest side images are decoded to
+     * @param maxBytes          size budget of a compressed image
+     * @param maxDecodedBitmaps decoded bitmaps alive at once, 0 for one per worker
+     */
+    ImagePreparer(int maxDimension, int maxBytes, int maxDecodedBitmaps) {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        this.maxDimension = maxDimension;
+        this.encoder = new JpegEncoder(maxBytes);
+        this.decodedBitmaps = maxDecodedBitmaps > 0 && maxDecodedBitmaps < threads ? new Semaphore(maxDecodedBitmaps) : null;
+        this.decoder = new BitmapDecoder(decodedBitmaps != null ? maxDecodedBitmaps : threads);
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Fingerprints the image first, if {@code fingerprints} is given, and stops as soon as it turns
+     * out to be a duplicate: a file already seen is not even decoded, a near copy not encoded.
+     *
+     * @param fingerprints the upload the image belongs to, null to skip duplicate detection
+     * @return the image compressed to the budget, without data if it cannot be decoded
+     */
+    PreparedImage prepare(ContentResolver contentResolver, Uri uri, int index, FingerprintIndex.Session fingerprints)
+            throws InterruptedException {
+        long contentHash = 0;
+        if (fingerprints != null) {
+            try {
+                contentHash = contentHash(contentResolver, uri);
+            } catch (IOException e) {
+                Log.e("CUSTOM_VISION", "Cannot read " + uri + ": " + e.getMessage());
+                return PreparedImage.failed(index);
+            }
+            if (!fingerprints.claimContent(contentHash)) {
+                return PreparedImage.duplicate(index);
+            }
+        }
+        if (decodedBitmaps != null) {
+            decodedBitmaps.acquire();
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = decoder.decode(contentResolver, uri, maxDimension);
+            if (bitmap == null) {
+                Log.e("CUSTOM_VISION", "Cannot decode " + uri);
+                return PreparedImage.failed(index);
+            }
+            long perceptualHash = 0;
+            if (fingerprints != null) {
+                perceptualHash = perceptualHash(bitmap);
+                if (!fingerprints.claimPerceptual(perceptualHash)) {
+                    return PreparedImage.duplicate(index);
+                }
+            }
+            return new PreparedImage(index, encoder.encode(bitmap), contentHash, perceptualHash);
+        } catch (Exception e) {
+            Log.e("CUSTOM_VISION", "Cannot decode " + uri + ": " + e.getMessage());
+            return PreparedImage.failed(index);
+        } finally {
+            decoder.release(bitmap);
+            if (decodedBitmaps != null) {
+                decodedBitmaps.release();
+            }
+        }
+    }
+
+    /**
+     * @return the first 64 bits of the SHA-1 of the file
+     */
+    private static long contentHash(ContentResolver contentResolver, Uri uri) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = contentResolver.openInputStream(uri)) {
+            if (in == null) {
+                throw new IOException("No content");
+            }
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private static long perceptualHash(Bitmap bitmap) {
+        final Bitmap small = Bitmap.createScaledBitmap(bitmap, HASH_SIZE, HASH_SIZE, true);
+        final int[] pixels = new int[HASH_SIZE * HASH_SIZE];
+        small.getPixels(pixels, 0, HASH_SIZE, 0, 0, HASH_SIZE, HASH_SIZE);
+        if (small != bitmap) {
+            small.recycle();
+        }
+        return PerceptualHash.dHash(pixels, HASH_SIZE, HASH_SIZE);
+    }
+
+    /**
+     * Frees the pooled bitmaps once an upload is done.
+     */
+    void clear() {
+        decoder.clear();
+    }
+}
@@ -0,0 +1,44 @@
+package pp.facerecognizer.connection;
+
+/**
+ * One image of an upload, compressed and ready to be written into a request.
+ */
+class PreparedImage {
+    /**
+     * Position of the image in the upload, it is named after it.
+     */
+    final int index;
+    /**
+     * The compressed image, null if it could not be read or is not to be sent.
+     */
+    final byte[] data;
+    /**
+     * Whether the tag already holds the image, or an earlier one of the same upload is it.
+     */
+    final boolean duplicate;
+    /**
+     * Fingerprint of the image, see {@link FingerprintIndex}; 0 when none was taken.
+     */
+    final long contentHash;
+    final long perceptualHash;
+
+    PreparedImage(int index, byte[] data, long contentHash, long perceptualHash) {
+        this(index, data, false, contentHash, perceptualHash);
+    }
+
+    private PreparedImage(int index, byte[] data, boolean duplicate, long contentHash, long perceptualHash) {
+        this.index = index;
+        this.data = data;
+        this.duplicate = duplicate;
+        this.contentHash = contentHash;
+        this.perceptualHash = perceptualHash;
+    }
+
+    static PreparedImage failed(int index) {
+        return new PreparedImage(index, null, false, 0, 0);
+    }
+
+    static PreparedImage duplicate(int index) {
+        return new PreparedImage(index, null, true, 0, 0);
+    }
+}
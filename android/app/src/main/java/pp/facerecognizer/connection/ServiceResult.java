@@ -0,0 +1,39 @@
+package pp.facerecognizer.connection;
+
+/**
+ * Outcome of one {@link CustomVisionService} call: its value and the status it came with, owned
+ * by that call alone.
+ */
+public class ServiceResult<T> {
+    private final T value;
+    private final int responseCode;
+    private final boolean successful;
+
+    ServiceResult(T value, int responseCode, boolean successful) {
+        this.value = value;
+        this.responseCode = responseCode;
+        this.successful = successful;
+    }
+
+    static <T> ServiceResult<T> failed(int responseCode) {
+        return new ServiceResult<>(null, responseCode, false);
+    }
+
+    /**
+     * @return the parsed answer, null if the call failed
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @return the HTTP code of the call, or of the first that failed; 0 if none got an answer
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+}
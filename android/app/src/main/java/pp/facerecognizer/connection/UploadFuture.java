@@ -0,0 +1,27 @@
+package pp.facerecognizer.connection;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The final report of a queued upload, completed by the {@link UploadScheduler} once every image
+ * is done or the attempts ran out. Never run, only completed.
+ */
+class UploadFuture extends FutureTask<UploadReport> {
+
+    UploadFuture() {
+        super(new Callable<UploadReport>() {
+            @Override public UploadReport call() {
+                throw new IllegalStateException("Completed by the scheduler");
+            }
+        });
+    }
+
+    void complete(UploadReport report) {
+        set(report);
+    }
+
+    void fail(Throwable cause) {
+        setException(cause);
+    }
+}
@@ -0,0 +1,329 @@
+package pp.facerecognizer.connection;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One upload as it progresses, on disk, so it can be resumed after a failure or a restart.
+ * <p>
+ * The journal file starts with the tag, the transport and the picked URIs, followed by one record
+ * per change of an image: prepared, with the path of the compressed image cached for the retries
+ * and its fingerprints, or done, with its final status. Records are only appended, and a record a
+ * crash left half written is cut off when the journal is opened again. The compressed images live
+ * in a directory of their own, which may be cleared by the system; images whose cached payload is
+ * gone are simply prepared again.
+ */
+class UploadJournal {
+
+    static final byte PENDING = 0;
+    static final byte PREPARED = 1;
+    static final byte UPLOADED = 2;
+    static final byte DUPLICATE = 3;
+    static final byte FAILED = 4;
+
+    private static final int MAGIC = 0x55504c4a; // "UPLJ"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".journal";
+
+    private final String id;
+    private final File file;
+    private final File payloadDir;
+    private final String tagId;
+    private final String tag;
+    private final CustomVisionService.UploadTransport transport;
+    private final List<Uri> uris;
+    private final byte[] states;
+    private final String[] payloads;
+    private final long[] contentHashes;
+    private final long[] perceptualHashes;
+    private RandomAccessFile out;
+
+    // Outcome of the latest attempt, not persisted.
+    private int lastErrorCode;
+    private long retryAfterMillis;
+    private long bytesWritten;
+
+    private UploadJournal(String id, File dir, File payloadRoot, String tagId, String tag,
+                          CustomVisionService.UploadTransport transport, List<Uri> uris) {
+        this.id = id;
+        this.file = new File(dir, id + SUFFIX);
+        this.payloadDir = new File(payloadRoot, id);
+        this.tagId = tagId;
+        this.tag = tag;
+        this.transport = transport;
+        this.uris = Collections.unmodifiableList(new ArrayList<>(uris));
+        this.states = new byte[uris.size()];
+        this.payloads = new String[uris.size()];
+        this.contentHashes = new long[uris.size()];
+        this.perceptualHashes = new long[uris.size()];
+    }
+
+    /**
+     * Writes the journal of a new upload, every image pending.
+     */
+    static UploadJournal create(File dir, File payloadRoot, String tagId, String tag,
+                                CustomVisionService.UploadTransport transport, List<Uri> uris) throws IOException {
+        final UploadJournal journal = new UploadJournal(UUID.randomUUID().toString(), dir, payloadRoot, tagId, tag, transport, uris);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        journal.out = new RandomAccessFile(journal.file, "rw");
+        journal.out.setLength(0);
+        journal.out.writeInt(MAGIC);
+        journal.out.writeInt(VERSION);
+        journal.out.writeUTF(tagId);
+        journal.out.writeUTF(tag);
+        journal.out.writeUTF(transport.name());
+        journal.out.writeInt(uris.size());
+        for (Uri uri : uris) {
+            journal.out.writeUTF(uri.toString());
+        }
+        journal.out.getFD().sync();
+        return journal;
+    }
+
+    /**
+     * @return the uploads left unfinished in {@code dir}, oldest first
+     */
+    static List<UploadJournal> openAll(File dir, File payloadRoot) {
+        final List<UploadJournal> journals = new ArrayList<>();
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return journals;
+        }
+        final List<File> sorted = new ArrayList<>();
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX)) {
+                sorted.add(f);
+            }
+        }
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : sorted) {
+            final String id = f.getName().substring(0, f.getName().length() - SUFFIX.length());
+            try {
+                journals.add(open(id, dir, payloadRoot));
+            } catch (IOException e) {
+                Log.e("CUSTOM_VISION", "Dropping unreadable upload journal " + f + ": " + e.getMessage());
+                f.delete();
+            }
+        }
+        return journals;
+    }
+
+    private static UploadJournal open(String id, File dir, File payloadRoot) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(new File(dir, id + SUFFIX), "rw");
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not an upload journal");
+            }
+            final String tagId = in.readUTF();
+            final String tag = in.readUTF();
+            final CustomVisionService.UploadTransport transport = CustomVisionService.UploadTransport.valueOf(in.readUTF());
+            final int count = in.readInt();
+            final List<Uri> uris = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                uris.add(Uri.parse(in.readUTF()));
+            }
+            final UploadJournal journal = new UploadJournal(id, dir, payloadRoot, tagId, tag, transport, uris);
+            long end = in.getFilePointer();
+            try {
+                while (true) {
+                    journal.replay(in);
+                    end = in.getFilePointer();
+                }
+            } catch (EOFException e) {
+                // Cut off the record a crash left half written, so the next one lines up.
+                in.setLength(end);
+            }
+            in.seek(end);
+            journal.out = in;
+            return journal;
+        } catch (IOException | IllegalArgumentException e) {
+            in.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    private void replay(RandomAccessFile in) throws IOException {
+        final byte state = in.readByte();
+        final int index = in.readInt();
+        if (index < 0 || index >= states.length) {
+            throw new IOException("Bad record for image " + index);
+        }
+        if (state == PREPARED) {
+            payloads[index] = in.readUTF();
+            contentHashes[index] = in.readLong();
+            perceptualHashes[index] = in.readLong();
+        }
+        states[index] = state;
+    }
+
+    String getTagId() {
+        return tagId;
+    }
+
+    String getTag() {
+        return tag;
+    }
+
+    CustomVisionService.UploadTransport getTransport() {
+        return transport;
+    }
+
+    List<Uri> getUris() {
+        return uris;
+    }
+
+    synchronized byte getState(int index) {
+        return states[index];
+    }
+
+    /**
+     * @return the cached compressed image of a prepared image, null if there is none
+     */
+    synchronized File getPayload(int index) {
+        return states[index] == PREPARED ? new File(payloads[index]) : null;
+    }
+
+    synchronized long getContentHash(int index) {
+        return contentHashes[index];
+    }
+
+    synchronized long getPerceptualHash(int index) {
+        return perceptualHashes[index];
+    }
+
+    /**
+     * @return where to cache the compressed image of {@code index}
+     */
+    File newPayloadFile(int index) throws IOException {
+        if (!payloadDir.exists() && !payloadDir.mkdirs()) {
+            throw new IOException("Cannot create " + payloadDir);
+        }
+        return new File(payloadDir, index + ".jpg");
+    }
+
+    synchronized void markPrepared(int index, File payload, long contentHash, long perceptualHash) {
+        states[index] = PREPARED;
+        payloads[index] = payload.getPath();
+        contentHashes[index] = contentHash;
+        perceptualHashes[index] = perceptualHash;
+        try {
+            out.writeByte(PREPARED);
+            out.writeInt(index);
+            out.writeUTF(payloads[index]);
+            out.writeLong(contentHash);
+            out.writeLong(perceptualHash);
+        } catch (IOException e) {
+            Log.e("CUSTOM_VISION", "Cannot journal image " + index + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records the final status of an image and drops its cached payload.
+     */
+    synchronized void markDone(int index, UploadReport.Status status) {
+        final byte state = status == UploadReport.Status.UPLOADED ? UPLOADED
+                : status == UploadReport.Status.DUPLICATE ? DUPLICATE : FAILED;
+        if (states[index] == PREPARED) {
+            new File(payloads[index]).delete();
+        }
+        states[index] = state;
+        try {
+            out.writeByte(state);
+            out.writeInt(index);
+        } catch (IOException e) {
+            Log.e("CUSTOM_VISION", "Cannot journal image " + index + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the images neither uploaded, nor known duplicates, nor failed for good
+     */
+    synchronized int getRemaining() {
+        int remaining = 0;
+        for (byte state : states) {
+            if (state == PENDING || state == PREPARED) {
+                remaining++;
+            }
+        }
+        return remaining;
+    }
+
+    synchronized void noteError(int responseCode, long retryAfterMillis) {
+        lastErrorCode = responseCode;
+        this.retryAfterMillis = Math.max(this.retryAfterMillis, retryAfterMillis);
+    }
+
+    synchronized void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    /**
+     * @return the longest wait the service asked for since the last call, 0 if none
+     */
+    synchronized long takeRetryAfter() {
+        final long millis = retryAfterMillis;
+        retryAfterMillis = 0;
+        return millis;
+    }
+
+    /**
+     * @return the status of every image, those still remaining as failed
+     */
+    synchronized UploadReport toReport() {
+        final UploadReport report = new UploadReport(uris);
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == UPLOADED) {
+                report.setStatus(i, UploadReport.Status.UPLOADED);
+            } else if (states[i] == DUPLICATE) {
+                report.setStatus(i, UploadReport.Status.DUPLICATE);
+            }
+        }
+        report.setErrorCode(lastErrorCode);
+        report.addBytesWritten(bytesWritten);
+        return report;
+    }
+
+    /**
+     * Deletes the journal and the cached payloads of a finished upload.
+     */
+    synchronized void delete() {
+        close();
+        file.delete();
+        final File[] cached = payloadDir.listFiles();
+        if (cached != null) {
+            for (File f : cached) {
+                f.delete();
+            }
+        }
+        payloadDir.delete();
+    }
+
+    synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.e("CUSTOM_VISION", "Cannot close upload journal " + id + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "upload " + id + " of " + uris.size() + " images to " + tag;
+    }
+}
@@ -0,0 +1,88 @@
+package pp.facerecognizer.connection;
+
+import android.net.Uri;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Outcome of every image of an upload, filled in by concurrent batches.
+ */
+public class UploadReport {
+
+    public enum Status {
+        UPLOADED,
+        DUPLICATE,
+        FAILED
+    }
+
+    private final List<Uri> uris;
+    private final Status[] statuses;
+    private int lastErrorCode;
+    private long bytesWritten;
+
+    UploadReport(List<Uri> uris) {
+        this.uris = uris;
+        this.statuses = new Status[uris.size()];
+        Arrays.fill(statuses, Status.FAILED);
+    }
+
+    synchronized void setStatus(int index, Status status) {
+        statuses[index] = status;
+    }
+
+    synchronized void setErrorCode(int responseCode) {
+        lastErrorCode = responseCode;
+    }
+
+    synchronized void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    public int size() {
+        return statuses.length;
+    }
+
+    public Uri getUri(int index) {
+        return uris.get(index);
+    }
+
+    public synchronized Status getStatus(int index) {
+        return statuses[index];
+    }
+
+    public synchronized int getCount(Status status) {
+        int count = 0;
+        for (Status s : statuses) {
+            if (s == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if every image was uploaded
+     */
+    public boolean isSuccessful() {
+        return getCount(Status.UPLOADED) == statuses.length;
+    }
+
+    /**
+     * @return the HTTP code of the last batch that was not accepted, 0 if there was none
+     */
+    public synchronized int getLastErrorCode() {
+        return lastErrorCode;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d images: %d uploaded, %d duplicates, %d failed, %d bytes",
+                size(), getCount(Status.UPLOADED), getCount(Status.DUPLICATE), getCount(Status.FAILED), getBytesWritten());
+    }
+}
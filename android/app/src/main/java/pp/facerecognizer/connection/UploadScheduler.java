@@ -0,0 +1,183 @@
+package pp.facerecognizer.connection;
+
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import pp.facerecognizer.listener.BatchUploadCallback;
+import pp.facerecognizer.listener.ImageUploadCallback;
+
+/**
+ * Runs uploads one at a time from their {@link UploadJournal} and retries what did not get
+ * through, in the background and across restarts.
+ * <p>
+ * An attempt that leaves images pending is scheduled again after an exponential backoff with
+ * jitter, or after the wait the service asked for if that is longer. Once every image is done,
+ * or the attempts run out, the callback of the upload hears the outcome. A journal whose attempts
+ * ran out is kept, so its pending images are tried again when the app next starts. The read
+ * grant persisted for a picked image is released once no journal needs the image any more.
+ * <p>
+ * Callbacks are held weakly, so an activity that finished meanwhile is not kept alive through
+ * minutes of backoff; it just misses the outcome.
+ */
+class UploadScheduler {
+
+    private static final long BASE_DELAY_MS = 2000;
+    private static final long MAX_DELAY_MS = 5 * 60 * 1000;
+
+    private final BatchUploader uploader;
+    private final FingerprintIndex fingerprints;
+    private final ContentResolver contentResolver;
+    private final File journalDir;
+    private final File payloadDir;
+    private final int maxAttempts;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final Random random = new Random();
+    // Journals still holding each picked image.
+    private final Map<Uri, Integer> grantHolders = new HashMap<>();
+
+    /**
+     * @param journalDir where the journals live, it must survive restarts
+     * @param payloadDir where the compressed images are cached, the system may clear it
+     */
+    UploadScheduler(BatchUploader uploader, FingerprintIndex fingerprints, ContentResolver contentResolver,
+                    File journalDir, File payloadDir, int maxAttempts) {
+        this.uploader = uploader;
+        this.fingerprints = fingerprints;
+        this.contentResolver = contentResolver;
+        this.journalDir = journalDir;
+        this.payloadDir = payloadDir;
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Journals a new upload and queues its first attempt.
+     *
+     * @param future completed with the report once the upload is done or its attempts ran out
+     */
+    void enqueue(String tagId, String tag, List<Uri> uris, CustomVisionService.UploadTransport transport,
+                 ImageUploadCallback callback, UploadFuture future) throws IOException {
+        final UploadJournal job = UploadJournal.create(journalDir, payloadDir, tagId, tag, transport, uris);
+        holdGrants(job);
+        schedule(job, 0, callback == null ? null : new WeakReference<>(callback), future, 0);
+    }
+
+    /**
+     * Queues the uploads an earlier run left unfinished, nobody is told about their outcome.
+     */
+    void resumePending() {
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                for (UploadJournal job : UploadJournal.openAll(journalDir, payloadDir)) {
+                    Log.i("CUSTOM_VISION", "Resuming " + job + ", " + job.getRemaining() + " images left");
+                    holdGrants(job);
+                    schedule(job, 0, null, null, 0);
+                }
+            }
+        });
+    }
+
+    private void schedule(final UploadJournal job, final int attempt, final WeakReference<ImageUploadCallback> callback,
+                          final UploadFuture future, long delayMillis) {
+        executor.schedule(new Runnable() {
+            @Override public void run() {
+                attempt(job, attempt, callback, future);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(UploadJournal job, int attempt, WeakReference<ImageUploadCallback> callbackRef,
+                         UploadFuture future) {
+        // Held for this attempt only.
+        final ImageUploadCallback callback = callbackRef == null ? null : callbackRef.get();
+        final BatchUploadCallback batchCallback = callback instanceof BatchUploadCallback ? (BatchUploadCallback) callback : null;
+        final long startTime = SystemClock.uptimeMillis();
+        try {
+            uploader.upload(contentResolver, job, fingerprints.begin(job.getTagId()), batchCallback);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.close();
+            if (future != null) {
+                future.fail(e);
+            }
+            return;
+        }
+        final int remaining = job.getRemaining();
+        Log.i("CUSTOM_VISION", String.format("Attempt %d of %s as %s took %dms, %d images left",
+                attempt + 1, job, job.getTransport(), SystemClock.uptimeMillis() - startTime, remaining));
+        if (remaining > 0 && attempt + 1 < maxAttempts) {
+            final long delay = Math.max(job.takeRetryAfter(), backoff(attempt));
+            Log.i("CUSTOM_VISION", "Retrying " + job + " in " + delay + "ms");
+            schedule(job, attempt + 1, callback == null ? null : callbackRef, future, delay);
+            return;
+        }
+        final UploadReport report = job.toReport();
+        if (remaining == 0) {
+            job.delete();
+            releaseGrants(job);
+        } else {
+            // Left for the next start of the app.
+            job.close();
+        }
+        if (future != null) {
+            future.complete(report);
+        }
+        if (callback == null) {
+            return;
+        }
+        if (report.isSuccessful()) {
+            callback.onUploadSuccess();
+        } else if (batchCallback != null && report.getCount(UploadReport.Status.UPLOADED) > 0) {
+            batchCallback.onUploadPartial(report);
+        } else {
+            callback.onUploadFailure(report.getLastErrorCode(), report.getCount(UploadReport.Status.DUPLICATE) > 0);
+        }
+    }
+
+    private synchronized void holdGrants(UploadJournal job) {
+        for (Uri uri : job.getUris()) {
+            final Integer holders = grantHolders.get(uri);
+            grantHolders.put(uri, holders == null ? 1 : holders + 1);
+        }
+    }
+
+    /**
+     * Releases the read grant of every image of the deleted {@code job} no other journal holds.
+     */
+    private synchronized void releaseGrants(UploadJournal job) {
+        for (Uri uri : job.getUris()) {
+            final Integer holders = grantHolders.get(uri);
+            if (holders != null && holders > 1) {
+                grantHolders.put(uri, holders - 1);
+                continue;
+            }
+            grantHolders.remove(uri);
+            try {
+                contentResolver.releasePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                // The provider did not offer a persistable grant, there is nothing to release.
+            }
+        }
+    }
+
+    /**
+     * @return a random wait between half and all of the doubled delay, so clients throttled
+     * together do not come back together
+     */
+    private long backoff(int attempt) {
+        final long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 20));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+}
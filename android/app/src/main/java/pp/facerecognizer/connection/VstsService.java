@@ -6,10 +6,8 @@ import com.google.gson.Gson;
 
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
-import okhttp3.Response;
 import pp.facerecognizer.connection.model.VstsBuild;
 import pp.facerecognizer.listener.BuildStatusListener;
 
@@ -19,13 +17,17 @@ public class VstsService {
     private String mBaseEndpoint;
     private String BUILD_ENDPOINT = "build/builds";
     private String API_VERSION = "?api-version=4.1";
-    private String mAccessToken;
+    private String mAuthorization;
+    private HttpTransport mTransport;
     private boolean successFlag = true;
     private int lastResponseCode;
 
-    public VstsService(String PAT, String project) {
-        mAccessToken = PAT;
+    public VstsService(String PAT, String project, int maxRequestsPerHost) {
+        // Encoded once, it goes with every request.
+        String encoded = android.util.Base64.encodeToString((":" + PAT).getBytes(), android.util.Base64.NO_WRAP);
+        mAuthorization = "Basic " + encoded;
         mBaseEndpoint = VSTS_ENDPOINT + project + "/_apis/";
+        mTransport = HttpTransport.shared(maxRequestsPerHost);
     }
 
     public String kickBuild(String buildDefinitionId) {
@@ -73,15 +75,13 @@ public class VstsService {
                         .post(requestBody)
                         .addHeader("Content-Type", "application/json");
             }
-            String PAT = android.util.Base64.encodeToString((":" + mAccessToken).getBytes(), android.util.Base64.DEFAULT);
             Request request = requestBuilder
-                    .addHeader("Authorization", "Basic " + PAT.trim())
+                    .addHeader("Authorization", mAuthorization)
                     .build();
-            OkHttpClient client = new OkHttpClient();
-            Response response = client.newCall(request).execute();
-            String responseBody = response.body().string();
-            lastResponseCode = response.code();
-            if (!response.isSuccessful() || lastResponseCode != 200) {
+            HttpResult response = mTransport.execute(request);
+            String responseBody = response.body;
+            lastResponseCode = response.code;
+            if (lastResponseCode != 200) {
                 Log.e("VSTS", responseBody);
                 successFlag = false;
 
@@ -0,0 +1,35 @@
+package pp.facerecognizer.connection.model;
+
+/**
+ * Custom Vision outcome of one uploaded image.
+ */
+public class ImageCreateResult {
+
+    public static final String STATUS_OK = "OK";
+    public static final String STATUS_DUPLICATE = "OKDuplicate";
+
+    private String sourceUrl;
+    private String status;
+    private Image image;
+
+    public ImageCreateResult(String sourceUrl, String status, Image image) {
+        this.sourceUrl = sourceUrl;
+        this.status = status;
+        this.image = image;
+    }
+
+    /**
+     * @return the name the image was uploaded with
+     */
+    public String getSourceUrl() {
+        return sourceUrl;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Image getImage() {
+        return image;
+    }
+}
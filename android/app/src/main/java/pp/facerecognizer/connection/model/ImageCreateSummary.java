@@ -0,0 +1,23 @@
+package pp.facerecognizer.connection.model;
+
+/**
+ * Custom Vision response to an image upload.
+ */
+public class ImageCreateSummary {
+
+    private boolean isBatchSuccessful;
+    private ImageCreateResult[] images;
+
+    public ImageCreateSummary(boolean isBatchSuccessful, ImageCreateResult[] images) {
+        this.isBatchSuccessful = isBatchSuccessful;
+        this.images = images;
+    }
+
+    public boolean isBatchSuccessful() {
+        return isBatchSuccessful;
+    }
+
+    public ImageCreateResult[] getImages() {
+        return images;
+    }
+}
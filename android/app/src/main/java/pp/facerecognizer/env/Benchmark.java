@@ -0,0 +1,89 @@
+package pp.facerecognizer.env;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal timing harness for on-device and JVM micro benchmarks.
+ */
+public final class Benchmark {
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Timing summary of a benchmark run, all values in milliseconds.
+     */
+    public static class Result {
+        private final String name;
+        private final int iterations;
+        private final double meanMs;
+        private final double minMs;
+        private final double p50Ms;
+        private final double p90Ms;
+
+        Result(String name, int iterations, double meanMs, double minMs, double p50Ms, double p90Ms) {
+            this.name = name;
+            this.iterations = iterations;
+            this.meanMs = meanMs;
+            this.minMs = minMs;
+            this.p50Ms = p50Ms;
+            this.p90Ms = p90Ms;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getMeanMs() {
+            return meanMs;
+        }
+
+        public double getMinMs() {
+            return minMs;
+        }
+
+        public double getP50Ms() {
+            return p50Ms;
+        }
+
+        public double getP90Ms() {
+            return p90Ms;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: n=%d mean=%.3fms min=%.3fms p50=%.3fms p90=%.3fms",
+                    name, iterations, meanMs, minMs, p50Ms, p90Ms);
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Runs {@code task} {@code warmup} times untimed, then {@code iterations} times timed.
+     */
+    public static Result measure(String name, int warmup, int iterations, Task task) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            task.run();
+        }
+        double[] samples = new double[iterations];
+        double total = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            task.run();
+            samples[i] = (System.nanoTime() - start) / 1e6;
+            total += samples[i];
+        }
+        Arrays.sort(samples);
+        return new Result(name, iterations, total / iterations, samples[0],
+                percentile(samples, 0.5), percentile(samples, 0.9));
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+}
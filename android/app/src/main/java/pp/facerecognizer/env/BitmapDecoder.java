@@ -0,0 +1,263 @@
+package pp.facerecognizer.env;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.media.ExifInterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Decodes images no larger than they are going to be used, upright, into pooled bitmaps.
+ * <p>
+ * The bounds are read first. The decoder then subsamples by the largest power of two that keeps
+ * the longer side at or above the target, and scales the rest of the way while decoding, so the
+ * full resolution image is never held in memory. The EXIF orientation is applied afterwards, on
+ * the small bitmap. Bitmaps come from a small pool through {@code inBitmap} and go back to it
+ * with {@link #release(Bitmap)}.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class BitmapDecoder {
+    private static final Logger LOGGER = new Logger();
+
+    private final int maxPooled;
+    private final ArrayDeque<Bitmap> pool = new ArrayDeque<>();
+
+    /**
+     * @param maxPooled bitmaps kept for reuse, one per thread decoding at once is enough
+     */
+    public BitmapDecoder(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @param maxDimension longest side of the result, smaller images keep their size
+     * @return the upright image, or null if it cannot be decoded. Hand it back with
+     * {@link #release(Bitmap)} when done.
+     */
+    public Bitmap decode(ContentResolver contentResolver, Uri uri, int maxDimension) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = contentResolver.openInputStream(uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        final int orientation = readOrientation(contentResolver, uri);
+
+        final int longSide = Math.max(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        final int sampledLongSide = (longSide + sampleSize - 1) / sampleSize;
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        if (sampledLongSide > maxDimension) {
+            // The decoder scales by inTargetDensity / inDensity, landing on the exact target.
+            options.inScaled = true;
+            options.inDensity = sampledLongSide;
+            options.inTargetDensity = maxDimension;
+            width = (int) Math.ceil((double) width * maxDimension / sampledLongSide);
+            height = (int) Math.ceil((double) height * maxDimension / sampledLongSide);
+        } else {
+            options.inScaled = false;
+        }
+        options.inBitmap = acquire((width + 1) * (height + 1) * 4);
+
+        Bitmap bitmap = decodeFile(contentResolver, uri, options);
+        if (bitmap == null && options.inBitmap != null) {
+            release(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decodeFile(contentResolver, uri, options);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        return orient(bitmap, orientation);
+    }
+
+    /**
+     * Returns a bitmap from {@link #decode} to the pool.
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+        final Bitmap evicted;
+        synchronized (pool) {
+            pool.addLast(bitmap);
+            evicted = pool.size() > maxPooled ? pool.removeFirst() : null;
+        }
+        if (evicted != null) {
+            evicted.recycle();
+        }
+    }
+
+    /**
+     * Frees the pooled bitmaps, for when no decoding is expected for a while.
+     */
+    public void clear() {
+        synchronized (pool) {
+            for (Bitmap bitmap : pool) {
+                bitmap.recycle();
+            }
+            pool.clear();
+        }
+    }
+
+    /**
+     * @return the smallest pooled bitmap of at least {@code byteCount} bytes, or null
+     */
+    private Bitmap acquire(int byteCount) {
+        synchronized (pool) {
+            Bitmap best = null;
+            for (Bitmap bitmap : pool) {
+                if (bitmap.getAllocationByteCount() >= byteCount
+                        && (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+                    best = bitmap;
+                }
+            }
+            if (best != null) {
+                pool.remove(best);
+            }
+            return best;
+        }
+    }
+
+    private static Bitmap decodeFile(ContentResolver contentResolver, Uri uri, BitmapFactory.Options options)
+            throws IOException {
+        try (ParcelFileDescriptor parcelFileDescriptor = contentResolver.openFileDescriptor(uri, "r")) {
+            if (parcelFileDescriptor == null) {
+                return null;
+            }
+            return BitmapFactory.decodeFileDescriptor(parcelFileDescriptor.getFileDescriptor(), null, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused for this image.
+            return null;
+        }
+    }
+
+    /**
+     * @return the EXIF orientation of the image, {@link ExifInterface#ORIENTATION_NORMAL} if it
+     * has none or cannot be read
+     */
+    public static int readOrientation(ContentResolver contentResolver, Uri uri) {
+        try (InputStream in = contentResolver.openInputStream(uri)) {
+            if (in == null) {
+                return ExifInterface.ORIENTATION_NORMAL;
+            }
+            return new ExifInterface(in).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            LOGGER.w("Cannot read the orientation of %s: %s", uri, e.getMessage());
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * @return the clockwise rotation that turns an image of the EXIF {@code orientation} upright,
+     * leaving it mirrored if the orientation is
+     */
+    public static int rotationDegrees(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_180:
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Maps {@code box}, in pixels of a {@code width} x {@code height} image stored with the EXIF
+     * {@code orientation}, to the pixels of the upright image.
+     */
+    public static void toUpright(RectF box, int orientation, int width, int height) {
+        final float[] m = uprightTransform(orientation, width, height);
+        if (m == null) {
+            return;
+        }
+        final float x0 = m[0] * box.left + m[1] * box.top + m[2];
+        final float y0 = m[3] * box.left + m[4] * box.top + m[5];
+        final float x1 = m[0] * box.right + m[1] * box.bottom + m[2];
+        final float y1 = m[3] * box.right + m[4] * box.bottom + m[5];
+        box.set(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1));
+    }
+
+    /**
+     * @return x' = a * x + b * y + c, y' = d * x + e * y + f as {a, b, c, d, e, f}, mapping pixel
+     * edges of the stored image onto those of the upright one; null if it is upright already
+     */
+    private static float[] uprightTransform(int orientation, float w, float h) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                return new float[] {-1, 0, w, 0, 1, 0};
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return new float[] {-1, 0, w, 0, -1, h};
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return new float[] {1, 0, 0, 0, -1, h};
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return new float[] {0, 1, 0, 1, 0, 0};
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return new float[] {0, -1, h, 1, 0, 0};
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return new float[] {0, -1, h, -1, 0, w};
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return new float[] {0, 1, 0, -1, 0, w};
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return {@code bitmap} turned upright, drawn into another pooled bitmap if that takes any
+     * change; {@code bitmap} is then released
+     */
+    private Bitmap orient(Bitmap bitmap, int orientation) {
+        final float[] m = uprightTransform(orientation, bitmap.getWidth(), bitmap.getHeight());
+        if (m == null) {
+            return bitmap;
+        }
+        final boolean swap = m[0] == 0;
+        final int width = swap ? bitmap.getHeight() : bitmap.getWidth();
+        final int height = swap ? bitmap.getWidth() : bitmap.getHeight();
+        Bitmap oriented = acquire(width * height * 4);
+        if (oriented != null) {
+            oriented.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            // Drawing blends over the pixels of the previous image, which would show through transparency.
+            oriented.eraseColor(Color.TRANSPARENT);
+        } else {
+            oriented = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        final Matrix matrix = new Matrix();
+        matrix.setValues(new float[] {m[0], m[1], m[2], m[3], m[4], m[5], 0, 0, 1});
+        new Canvas(oriented).drawBitmap(bitmap, matrix, null);
+        release(bitmap);
+        return oriented;
+    }
+}
@@ -74,7 +74,7 @@ public class BorderedText {
         exteriorPaint.setTypeface(typeface);
     }
 
-    private void drawText(final Canvas canvas, final float posX, final float posY, final String text) {
+    public void drawText(final Canvas canvas, final float posX, final float posY, final String text) {
         canvas.drawText(text, posX, posY, exteriorPaint);
         canvas.drawText(text, posX, posY, interiorPaint);
     }
@@ -0,0 +1,113 @@
+package pp.facerecognizer.env;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Compresses bitmaps to the best JPEG that fits a byte budget, entirely in memory.
+ * <p>
+ * The highest quality is tried first, and most images fit it with a single encode. Otherwise the
+ * quality is binary searched down to {@link #MIN_QUALITY}. If even that is too large, the image
+ * is scaled by the square root of the overshoot and searched again. Encodings go to buffers that
+ * grow as needed and are kept per thread, so concurrent callers share nothing.
+ */
+public class JpegEncoder {
+
+    private static final int MAX_QUALITY = 95;
+    private static final int MIN_QUALITY = 40;
+    // The search stops once the best fitting quality is known to within this many steps.
+    private static final int QUALITY_TOLERANCE = 4;
+    private static final int MIN_DIMENSION = 32;
+
+    private final int maxBytes;
+    private final ThreadLocal<ByteArrayOutputStream[]> buffers = new ThreadLocal<ByteArrayOutputStream[]>() {
+        @Override protected ByteArrayOutputStream[] initialValue() {
+            // The best encoding so far, and the one being tried.
+            return new ByteArrayOutputStream[] {
+                    new ByteArrayOutputStream(maxBytes), new ByteArrayOutputStream(maxBytes)};
+        }
+    };
+
+    public JpegEncoder(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return {@code bitmap} as a JPEG of at most the budget, unless it cannot be made that small
+     * at {@link #MIN_QUALITY} and {@link #MIN_DIMENSION} pixels
+     */
+    public byte[] encode(Bitmap bitmap) {
+        final ByteArrayOutputStream[] pair = buffers.get();
+        pair[0].reset();
+        Bitmap source = bitmap;
+        try {
+            while (true) {
+                final int tooLarge = search(source, pair);
+                if (tooLarge == 0) {
+                    break;
+                }
+                final double scale = Math.sqrt((double) maxBytes / tooLarge) * 0.9;
+                final int width = (int) (source.getWidth() * scale);
+                final int height = (int) (source.getHeight() * scale);
+                if (Math.min(width, height) < MIN_DIMENSION) {
+                    break;
+                }
+                final Bitmap scaled = Bitmap.createScaledBitmap(source, width, height, true);
+                if (source != bitmap) {
+                    source.recycle();
+                }
+                source = scaled;
+            }
+        } finally {
+            if (source != bitmap) {
+                source.recycle();
+            }
+        }
+        return pair[0].toByteArray();
+    }
+
+    /**
+     * Leaves the highest fitting quality encoding of {@code source} in {@code pair[0]}, or the
+     * {@link #MIN_QUALITY} one if none fits.
+     *
+     * @return 0 if an encoding fits, otherwise the size at {@link #MIN_QUALITY}
+     */
+    private int search(Bitmap source, ByteArrayOutputStream[] pair) {
+        if (compress(source, MAX_QUALITY, pair)) {
+            return 0;
+        }
+        if (!compress(source, MIN_QUALITY, pair)) {
+            return pair[0].size();
+        }
+        int lo = MIN_QUALITY;
+        int hi = MAX_QUALITY;
+        while (hi - lo > QUALITY_TOLERANCE) {
+            final int mid = (lo + hi) >>> 1;
+            if (compress(source, mid, pair)) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Encodes into {@code pair[1]} and makes it {@code pair[0]} if it fits the budget, or if
+     * {@code pair[0]} holds nothing that does.
+     *
+     * @return whether the encoding fits
+     */
+    private boolean compress(Bitmap source, int quality, ByteArrayOutputStream[] pair) {
+        final ByteArrayOutputStream candidate = pair[1];
+        candidate.reset();
+        source.compress(Bitmap.CompressFormat.JPEG, quality, candidate);
+        final boolean fits = candidate.size() <= maxBytes;
+        if (fits || pair[0].size() == 0 || pair[0].size() > maxBytes) {
+            pair[1] = pair[0];
+            pair[0] = candidate;
+        }
+        return fits;
+    }
+}
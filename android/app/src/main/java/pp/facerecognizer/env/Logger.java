@@ -70,7 +70,7 @@ public final class Logger {
         this(DEFAULT_TAG, null);
     }
 
-    private boolean isLoggable(final int logLevel) {
+    public boolean isLoggable(final int logLevel) {
         return logLevel >= DEFAULT_MIN_LOG_LEVEL || Log.isLoggable(tag, logLevel);
     }
 
@@ -107,6 +107,12 @@ public final class Logger {
         return messagePrefix + (args.length > 0 ? String.format(format, args) : format);
     }
 
+    public void v(final String format, final Object... args) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(tag, toMessage(format, args));
+        }
+    }
+
     public void d(final String format, final Object... args) {
         if (isLoggable(Log.DEBUG)) {
             Log.d(tag, toMessage(format, args));
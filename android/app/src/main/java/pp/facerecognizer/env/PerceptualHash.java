@@ -0,0 +1,80 @@
+package pp.facerecognizer.env;
+
+/**
+ * 64-bit difference hash (dHash) over the luma of an ARGB image.
+ * <p>
+ * The image is reduced to a 9x8 grid of block-mean luma values and each bit records whether a
+ * cell is brighter than its right neighbour. Visually similar images have a small Hamming
+ * distance between their hashes.
+ */
+public final class PerceptualHash {
+
+    private static final int GRID_W = 9;
+    private static final int GRID_H = 8;
+
+    private PerceptualHash() {
+    }
+
+    public static long dHash(int[] argb, int width, int height) {
+        return dHash(argb, 0, width, width, height);
+    }
+
+    /**
+     * @param argb   pixels, row major
+     * @param offset index of the top-left pixel
+     * @param stride pixels per row in {@code argb}
+     */
+    public static long dHash(int[] argb, int offset, int stride, int width, int height) {
+        final int[] sums = new int[GRID_W * GRID_H];
+        final int[] counts = new int[GRID_W * GRID_H];
+        for (int y = 0; y < height; y++) {
+            final int row = (y * GRID_H / height) * GRID_W;
+            int p = offset + y * stride;
+            for (int x = 0; x < width; x++, p++) {
+                final int val = argb[p];
+                // Integer approximation of Rec. 601 luma: (77 R + 150 G + 29 B) / 256.
+                final int luma = (77 * ((val >> 16) & 0xFF) + 150 * ((val >> 8) & 0xFF) + 29 * (val & 0xFF)) >> 8;
+                final int cell = row + x * GRID_W / width;
+                sums[cell] += luma;
+                counts[cell]++;
+            }
+        }
+        return fromGrid(sums, counts);
+    }
+
+    /**
+     * Hashes an 8-bit luma plane such as the Y plane of a camera frame.
+     */
+    public static long dHash(byte[] luma, int offset, int stride, int width, int height) {
+        final int[] sums = new int[GRID_W * GRID_H];
+        final int[] counts = new int[GRID_W * GRID_H];
+        for (int y = 0; y < height; y++) {
+            final int row = (y * GRID_H / height) * GRID_W;
+            int p = offset + y * stride;
+            for (int x = 0; x < width; x++, p++) {
+                final int cell = row + x * GRID_W / width;
+                sums[cell] += luma[p] & 0xFF;
+                counts[cell]++;
+            }
+        }
+        return fromGrid(sums, counts);
+    }
+
+    private static long fromGrid(int[] sums, int[] counts) {
+        long hash = 0;
+        for (int y = 0; y < GRID_H; y++) {
+            for (int x = 0; x < GRID_W - 1; x++) {
+                final int i = y * GRID_W + x;
+                // Compare means without dividing: a / ca > b / cb  <=>  a * cb > b * ca.
+                final long left = (long) sums[i] * Math.max(1, counts[i + 1]);
+                final long right = (long) sums[i + 1] * Math.max(1, counts[i]);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    public static int hammingDistance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
@@ -0,0 +1,257 @@
+package pp.facerecognizer.env;
+
+/**
+ * Crops, scales and rotates ARGB pixel arrays without going through a Bitmap or Canvas.
+ * <p>
+ * Scaling is separable: a horizontal pass over only the source rows the crop touches, into an
+ * intermediate buffer with 8 fractional bits per channel, then a vertical pass. Each pass reads a
+ * coefficient table built once per call, one run of fixed-point weights per output coordinate:
+ * an area (box) filter when shrinking and a bilinear filter when enlarging. Source pixels outside
+ * the image count as black. Rotations by multiples of 90 degrees cost nothing extra, the vertical
+ * pass writes every pixel straight to its rotated index. The alpha channel is written opaque.
+ * <p>
+ * Instances reuse their tables and buffers and are not thread-safe.
+ */
+public final class Resampler {
+
+    private static final int WEIGHT_BITS = 14;
+    private static final int ONE = 1 << WEIGHT_BITS;
+    // Fractional bits dropped after the horizontal pass, so the vertical sums fit in an int.
+    private static final int INTERMEDIATE_SHIFT = 6;
+    private static final int OUTPUT_SHIFT = 2 * WEIGHT_BITS - INTERMEDIATE_SHIFT;
+
+    /**
+     * Weights of the source pixels contributing to each output coordinate along one axis.
+     */
+    private static final class Filter {
+        int length;
+        int taps;
+        int[] start = new int[0];
+        int[] count = new int[0];
+        int[] weights = new int[0];
+        private float[] raw = new float[0];
+
+        /**
+         * @param origin source coordinate of the left (top) edge of the first output pixel
+         * @param scale  source pixels per output pixel
+         */
+        void build(float origin, float scale, int length, int sourceLength) {
+            this.length = length;
+            taps = scale > 1.f ? (int) Math.ceil(scale) + 1 : 2;
+            if (start.length < length) {
+                start = new int[length];
+                count = new int[length];
+            }
+            if (weights.length < length * taps) {
+                weights = new int[length * taps];
+            }
+            if (raw.length < taps) {
+                raw = new float[taps];
+            }
+            for (int i = 0; i < length; i++) {
+                final int first;
+                int n = 0;
+                if (scale > 1.f) {
+                    // Area: each source pixel weighs what it covers of the output pixel's span.
+                    final float s0 = origin + i * scale;
+                    final float s1 = s0 + scale;
+                    first = (int) Math.floor(s0);
+                    for (int j = first; j < s1 && n < taps; j++, n++) {
+                        raw[n] = (Math.min(s1, j + 1) - Math.max(s0, j)) / scale;
+                    }
+                } else {
+                    // Bilinear between the two source pixels around the output pixel center.
+                    final float center = origin + (i + 0.5f) * scale - 0.5f;
+                    first = (int) Math.floor(center);
+                    final float f = center - first;
+                    raw[n++] = 1.f - f;
+                    raw[n++] = f;
+                }
+                // Taps outside the source are dropped, the pixels they stand for are black.
+                int lo = 0;
+                while (lo < n && first + lo < 0) {
+                    lo++;
+                }
+                int hi = n;
+                while (hi > lo && first + hi - 1 >= sourceLength) {
+                    hi--;
+                }
+                start[i] = first + lo;
+                count[i] = hi - lo;
+                int sum = 0;
+                int largest = -1;
+                float rawSum = 0;
+                for (int k = lo; k < hi; k++) {
+                    final int w = Math.round(raw[k] * ONE);
+                    weights[i * taps + k - lo] = w;
+                    sum += w;
+                    rawSum += raw[k];
+                    if (largest < 0 || w > weights[i * taps + largest]) {
+                        largest = k - lo;
+                    }
+                }
+                // Put the rounding error on the largest tap so flat areas stay exactly flat.
+                if (largest >= 0) {
+                    weights[i * taps + largest] += Math.round(rawSum * ONE) - sum;
+                }
+            }
+        }
+
+        int minStart() {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < length; i++) {
+                if (count[i] > 0) {
+                    min = Math.min(min, start[i]);
+                }
+            }
+            return min;
+        }
+
+        int maxEnd() {
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < length; i++) {
+                if (count[i] > 0) {
+                    max = Math.max(max, start[i] + count[i]);
+                }
+            }
+            return max;
+        }
+    }
+
+    private final Filter horizontal = new Filter();
+    private final Filter vertical = new Filter();
+    private int[] intermediate = new int[0];
+
+    /**
+     * Resamples the rectangle ({@code left}, {@code top}, {@code width}, {@code height}) of
+     * {@code src}, in source pixels and possibly reaching outside the image, rotated clockwise by
+     * {@code rotation} degrees around its center, into the whole of {@code dst}.
+     *
+     * @param src      ARGB pixels, row major with {@code srcStride} pixels per row
+     * @param rotation a multiple of 90, negative values rotate counter-clockwise
+     * @param dst      receives {@code dstWidth * dstHeight} ARGB pixels, row major
+     */
+    public void resample(int[] src, int srcWidth, int srcHeight, int srcStride,
+                         float left, float top, float width, float height, int rotation,
+                         int[] dst, int dstWidth, int dstHeight) {
+        final int quarterTurns = quarterTurns(rotation);
+        // Size of the output before rotation.
+        final int outWidth = quarterTurns % 2 == 0 ? dstWidth : dstHeight;
+        final int outHeight = quarterTurns % 2 == 0 ? dstHeight : dstWidth;
+
+        horizontal.build(left, width / outWidth, outWidth, srcWidth);
+        vertical.build(top, height / outHeight, outHeight, srcHeight);
+
+        // Index of output pixel (x, y) before rotation is base + x * xStep + y * yStep.
+        final int base;
+        final int xStep;
+        final int yStep;
+        switch (quarterTurns) {
+            case 1:
+                base = outHeight - 1;
+                xStep = dstWidth;
+                yStep = -1;
+                break;
+            case 2:
+                base = (outHeight - 1) * dstWidth + outWidth - 1;
+                xStep = -1;
+                yStep = -dstWidth;
+                break;
+            case 3:
+                base = (outWidth - 1) * dstWidth;
+                xStep = -dstWidth;
+                yStep = 1;
+                break;
+            default:
+                base = 0;
+                xStep = 1;
+                yStep = dstWidth;
+                break;
+        }
+
+        final int firstRow = vertical.minStart();
+        final int endRow = vertical.maxEnd();
+        if (firstRow >= endRow) {
+            // The crop lies entirely outside the image.
+            for (int i = 0; i < dstWidth * dstHeight; i++) {
+                dst[i] = 0xFF000000;
+            }
+            return;
+        }
+
+        final int rowLength = outWidth * 3;
+        if (intermediate.length < (endRow - firstRow) * rowLength) {
+            intermediate = new int[(endRow - firstRow) * rowLength];
+        }
+        horizontalPass(src, srcStride, firstRow, endRow, rowLength);
+        verticalPass(firstRow, rowLength, dst, base, xStep, yStep);
+    }
+
+    private void horizontalPass(int[] src, int srcStride, int firstRow, int endRow, int rowLength) {
+        final int[] start = horizontal.start;
+        final int[] count = horizontal.count;
+        final int[] weights = horizontal.weights;
+        final int taps = horizontal.taps;
+        final int round = 1 << (INTERMEDIATE_SHIFT - 1);
+        for (int y = firstRow; y < endRow; y++) {
+            final int srcRow = y * srcStride;
+            int out = (y - firstRow) * rowLength;
+            for (int x = 0; x < horizontal.length; x++) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                int p = srcRow + start[x];
+                for (int k = 0, w = x * taps; k < count[x]; k++, w++, p++) {
+                    final int val = src[p];
+                    final int weight = weights[w];
+                    r += weight * ((val >> 16) & 0xFF);
+                    g += weight * ((val >> 8) & 0xFF);
+                    b += weight * (val & 0xFF);
+                }
+                intermediate[out++] = (r + round) >> INTERMEDIATE_SHIFT;
+                intermediate[out++] = (g + round) >> INTERMEDIATE_SHIFT;
+                intermediate[out++] = (b + round) >> INTERMEDIATE_SHIFT;
+            }
+        }
+    }
+
+    private void verticalPass(int firstRow, int rowLength, int[] dst, int base, int xStep, int yStep) {
+        final int[] start = vertical.start;
+        final int[] count = vertical.count;
+        final int[] weights = vertical.weights;
+        final int taps = vertical.taps;
+        final int round = 1 << (OUTPUT_SHIFT - 1);
+        for (int y = 0; y < vertical.length; y++) {
+            final int rowOffset = (start[y] - firstRow) * rowLength;
+            final int n = count[y];
+            final int w0 = y * taps;
+            int out = base + y * yStep;
+            for (int x = 0; x < rowLength; x += 3, out += xStep) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int k = 0, p = rowOffset + x; k < n; k++, p += rowLength) {
+                    final int weight = weights[w0 + k];
+                    r += weight * intermediate[p];
+                    g += weight * intermediate[p + 1];
+                    b += weight * intermediate[p + 2];
+                }
+                dst[out] = 0xFF000000
+                        | clamp((r + round) >> OUTPUT_SHIFT) << 16
+                        | clamp((g + round) >> OUTPUT_SHIFT) << 8
+                        | clamp((b + round) >> OUTPUT_SHIFT);
+            }
+        }
+    }
+
+    private static int quarterTurns(int rotation) {
+        if (rotation % 90 != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees: " + rotation);
+        }
+        return ((rotation / 90) % 4 + 4) % 4;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,19 @@
+package pp.facerecognizer.listener;
+
+import pp.facerecognizer.connection.UploadReport;
+
+/**
+ * {@link ImageUploadCallback} of an upload sent in several batches.
+ */
+public interface BatchUploadCallback extends ImageUploadCallback {
+    /**
+     * Called from an upload thread whenever a batch has been answered.
+     */
+    void onUploadProgress(int done, int total);
+
+    /**
+     * Called instead of {@link #onUploadSuccess()} or {@link #onUploadFailure(int, boolean)} when
+     * some of the images were uploaded and others were duplicates or failed.
+     */
+    void onUploadPartial(UploadReport report);
+}
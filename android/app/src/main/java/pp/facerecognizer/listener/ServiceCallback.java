@@ -0,0 +1,13 @@
+package pp.facerecognizer.listener;
+
+import pp.facerecognizer.connection.ServiceResult;
+
+/**
+ * Told the outcome of an asynchronous {@link pp.facerecognizer.connection.CustomVisionService} call.
+ */
+public interface ServiceCallback<T> {
+    /**
+     * Called from a service thread once the call is done, whether it succeeded or not.
+     */
+    void onResult(ServiceResult<T> result);
+}